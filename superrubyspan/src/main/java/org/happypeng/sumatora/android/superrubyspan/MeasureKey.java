@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.graphics.Typeface;
+import android.os.Build;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.text.TextPaint;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+
+// Captures everything a measurement depends on: the paint state, the
+// characters between start and end, and the spans applied to them.
+// Span positions are stored relative to start, so that a measurement
+// stays valid when text is inserted before the span.
+//
+// Immutable texts, such as the furigana of SuperRubySpan, are matched
+// by identity: looking them up again neither compares their characters
+// nor allocates the array of their spans.
+
+class MeasureKey {
+    private final float mTextSize;
+    private final float mTextScaleX;
+    private final float mTextSkewX;
+    private final float mLetterSpacing;
+    private final float mStrokeWidth;
+    private final int mFlags;
+    private final int mColor;
+    private final int mBgColor;
+    private final int mBaselineShift;
+    private final Paint.Style mStyle;
+    private final Typeface mTypeface;
+    private final Shader mShader;
+    private final Object mTextLocales;
+    private final String mFontFeatureSettings;
+    private final String mFontVariationSettings;
+    private final boolean mElegantTextHeight;
+    private final int mHinting;
+
+    private final @Nullable WeakReference<CharSequence> mImmutableText;
+    private final int mStart;
+    private final int mEnd;
+
+    private final String mText;
+    private final Object[] mSpans;
+    private final int[] mSpanRanges;
+
+    private MeasureKey(final @NonNull Paint aPaint,
+                       final @NonNull CharSequence aSource,
+                       final int aStart, final int aEnd,
+                       final @NonNull String aText,
+                       final Object[] aSpans,
+                       final int[] aSpanRanges) {
+        mTextSize = aPaint.getTextSize();
+        mTextScaleX = aPaint.getTextScaleX();
+        mTextSkewX = aPaint.getTextSkewX();
+        mLetterSpacing = getLetterSpacing(aPaint);
+        mStrokeWidth = aPaint.getStrokeWidth();
+        mFlags = aPaint.getFlags();
+        mColor = aPaint.getColor();
+        mBgColor = aPaint instanceof TextPaint ? ((TextPaint) aPaint).bgColor : 0;
+        mBaselineShift = aPaint instanceof TextPaint ? ((TextPaint) aPaint).baselineShift : 0;
+        mStyle = aPaint.getStyle();
+        mTypeface = aPaint.getTypeface();
+        mShader = aPaint.getShader();
+        mTextLocales = getTextLocales(aPaint);
+        mFontFeatureSettings = getFontFeatureSettings(aPaint);
+        mFontVariationSettings = getFontVariationSettings(aPaint);
+        mElegantTextHeight = isElegantTextHeight(aPaint);
+        mHinting = aPaint.getHinting();
+
+        mImmutableText = isImmutable(aSource) ? new WeakReference<>(aSource) : null;
+        mStart = aStart;
+        mEnd = aEnd;
+
+        mText = aText;
+        mSpans = aSpans;
+        mSpanRanges = aSpanRanges;
+    }
+
+    private static float getLetterSpacing(final @NonNull Paint aPaint) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return aPaint.getLetterSpacing();
+        }
+
+        return 0;
+    }
+
+    // A LocaleList from API 24, a Locale before
+    private static @Nullable Object getTextLocales(final @NonNull Paint aPaint) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return aPaint.getTextLocales();
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return aPaint.getTextLocale();
+        }
+
+        return null;
+    }
+
+    private static @Nullable String getFontFeatureSettings(final @NonNull Paint aPaint) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return aPaint.getFontFeatureSettings();
+        }
+
+        return null;
+    }
+
+    private static @Nullable String getFontVariationSettings(final @NonNull Paint aPaint) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return aPaint.getFontVariationSettings();
+        }
+
+        return null;
+    }
+
+    private static boolean isElegantTextHeight(final @NonNull Paint aPaint) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return aPaint.isElegantTextHeight();
+        }
+
+        return false;
+    }
+
+    private static boolean equals(final @Nullable Object aFirst, final @Nullable Object aSecond) {
+        return aFirst == null ? aSecond == null : aFirst.equals(aSecond);
+    }
+
+    // Neither the characters nor the spans of these texts can change
+    private static boolean isImmutable(final @NonNull CharSequence aText) {
+        return aText instanceof String || aText instanceof SpannedString;
+    }
+
+    // Copies the characters only: subSequence() of a spanned text would
+    // copy its spans first
+    private static @NonNull String copyText(final @NonNull CharSequence aText, final int aStart, final int aEnd) {
+        if (aText instanceof String) {
+            return ((String) aText).substring(aStart, aEnd);
+        }
+
+        return new StringBuilder(aEnd - aStart).append(aText, aStart, aEnd).toString();
+    }
+
+    static MeasureKey create(final @NonNull Paint aPaint, final @NonNull CharSequence aText,
+                             final int aStart, final int aEnd) {
+        Object[] spans = null;
+        int[] spanRanges = null;
+
+        if (aText instanceof Spanned) {
+            final Spanned spanned = (Spanned) aText;
+
+            spans = spanned.getSpans(aStart, aEnd, Object.class);
+            spanRanges = new int[spans.length * 3];
+
+            for (int i = 0; i < spans.length; i++) {
+                spanRanges[3 * i] = spanned.getSpanStart(spans[i]) - aStart;
+                spanRanges[3 * i + 1] = spanned.getSpanEnd(spans[i]) - aStart;
+                spanRanges[3 * i + 2] = spanned.getSpanFlags(spans[i]);
+            }
+        }
+
+        return new MeasureKey(aPaint, aText, aStart, aEnd, copyText(aText, aStart, aEnd), spans, spanRanges);
+    }
+
+    private boolean matchesPaint(final @NonNull Paint aPaint) {
+        return mTextSize == aPaint.getTextSize() &&
+                mTextScaleX == aPaint.getTextScaleX() &&
+                mTextSkewX == aPaint.getTextSkewX() &&
+                mLetterSpacing == getLetterSpacing(aPaint) &&
+                mStrokeWidth == aPaint.getStrokeWidth() &&
+                mFlags == aPaint.getFlags() &&
+                mColor == aPaint.getColor() &&
+                mBgColor == (aPaint instanceof TextPaint ? ((TextPaint) aPaint).bgColor : 0) &&
+                mBaselineShift == (aPaint instanceof TextPaint ? ((TextPaint) aPaint).baselineShift : 0) &&
+                mStyle == aPaint.getStyle() &&
+                mTypeface == aPaint.getTypeface() &&
+                mShader == aPaint.getShader() &&
+                mElegantTextHeight == isElegantTextHeight(aPaint) &&
+                mHinting == aPaint.getHinting() &&
+                equals(mTextLocales, getTextLocales(aPaint)) &&
+                equals(mFontFeatureSettings, getFontFeatureSettings(aPaint)) &&
+                equals(mFontVariationSettings, getFontVariationSettings(aPaint));
+    }
+
+    private boolean isSameImmutableText(final @NonNull CharSequence aText, final int aStart, final int aEnd) {
+        return mImmutableText != null && mImmutableText.get() == aText &&
+                mStart == aStart && mEnd == aEnd;
+    }
+
+    private boolean matchesText(final @NonNull CharSequence aText, final int aStart, final int aEnd) {
+        if (aEnd - aStart != mText.length()) {
+            return false;
+        }
+
+        for (int i = aStart; i < aEnd; i++) {
+            if (aText.charAt(i) != mText.charAt(i - aStart)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean matchesSpans(final @NonNull CharSequence aText, final int aStart, final int aEnd) {
+        if (!(aText instanceof Spanned)) {
+            return mSpans == null;
+        }
+
+        if (mSpans == null) {
+            return false;
+        }
+
+        final Spanned spanned = (Spanned) aText;
+        final Object[] spans = spanned.getSpans(aStart, aEnd, Object.class);
+
+        if (spans.length != mSpans.length) {
+            return false;
+        }
+
+        for (int i = 0; i < spans.length; i++) {
+            if (spans[i] != mSpans[i] ||
+                    spanned.getSpanStart(spans[i]) - aStart != mSpanRanges[3 * i] ||
+                    spanned.getSpanEnd(spans[i]) - aStart != mSpanRanges[3 * i + 1] ||
+                    spanned.getSpanFlags(spans[i]) != mSpanRanges[3 * i + 2]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    boolean matches(final @NonNull Paint aPaint, final @NonNull CharSequence aText,
+                    final int aStart, final int aEnd) {
+        return matchesPaint(aPaint) && (isSameImmutableText(aText, aStart, aEnd) ||
+                (matchesText(aText, aStart, aEnd) && matchesSpans(aText, aStart, aEnd)));
+    }
+
+    // Approximate heap retained by this key: the object itself, the
+    // reference to an immutable text, the copied text, and the span
+    // array with their ranges
+
+    int estimateBytes() {
+        return 120 + (mImmutableText == null ? 0 : 32) + 40 + 2 * mText.length() +
+                (mSpans == null ? 0 : 32 + 16 * mSpans.length);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Build;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+
+import androidx.annotation.ColorInt;
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Renders ruby text off-screen, laid out by a StaticLayout, on a pool
+// of background threads. Each thread owns its paint, canvas and, for
+// render() with a listener, the bitmap it draws into: renders of many
+// texts spread across cores without sharing any drawing state.
+//
+// Submitted text must not be modified until its render has completed.
+
+public class RubyBitmapRenderer {
+    public interface OnRenderedListener {
+        // Called on the rendering thread. aBitmap is reused by the next
+        // render of this thread and must not be kept after returning.
+        void onRendered(@NonNull Spanned aText, @NonNull Bitmap aBitmap);
+    }
+
+    private static class RenderState {
+        final TextPaint paint;
+        final Canvas canvas;
+
+        Bitmap bitmap;
+
+        RenderState(final @NonNull TextPaint aPaint) {
+            paint = new TextPaint(aPaint);
+            canvas = new Canvas();
+            bitmap = null;
+        }
+    }
+
+    private final ExecutorService mExecutorService;
+    private final ThreadLocal<RenderState> mRenderState;
+    private final Bitmap.Config mBitmapConfig;
+
+    private volatile @ColorInt int mBackgroundColor;
+
+    public RubyBitmapRenderer(final @NonNull TextPaint aPaint, final int aThreadCount,
+                              final @NonNull Bitmap.Config aBitmapConfig) {
+        final TextPaint paint = new TextPaint(aPaint);
+
+        mExecutorService = new ThreadPoolExecutor(aThreadCount, aThreadCount,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final @NonNull Runnable aRunnable) {
+                        final Thread thread = new Thread(aRunnable, "RubyBitmapRenderer");
+
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+
+        ((ThreadPoolExecutor) mExecutorService).allowCoreThreadTimeOut(true);
+
+        mRenderState = new ThreadLocal<RenderState>() {
+            @Override
+            protected RenderState initialValue() {
+                return new RenderState(paint);
+            }
+        };
+
+        mBitmapConfig = aBitmapConfig;
+        mBackgroundColor = Color.TRANSPARENT;
+    }
+
+    public RubyBitmapRenderer(final @NonNull TextPaint aPaint) {
+        this(aPaint, Runtime.getRuntime().availableProcessors(), Bitmap.Config.ARGB_8888);
+    }
+
+    public void setBackgroundColor(final @ColorInt int aBackgroundColor) {
+        mBackgroundColor = aBackgroundColor;
+    }
+
+    public @ColorInt int getBackgroundColor() {
+        return mBackgroundColor;
+    }
+
+    @SuppressWarnings("deprecation")
+    static @NonNull StaticLayout createLayout(final @NonNull Spanned aText, final @NonNull TextPaint aPaint,
+                                              final int aWidth) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return StaticLayout.Builder.obtain(aText, 0, aText.length(), aPaint, aWidth).build();
+        }
+
+        return new StaticLayout(aText, aPaint, aWidth, Layout.Alignment.ALIGN_NORMAL,
+                1, 0, true);
+    }
+
+    // A height of 0 or less fits the bitmap to the height of the text.
+
+    private @NonNull Bitmap draw(final @NonNull Spanned aText, final int aWidth, final int aHeight,
+                                 final boolean aReuseBitmap) {
+        final RenderState renderState = mRenderState.get();
+        final StaticLayout staticLayout = createLayout(aText, renderState.paint, aWidth);
+        final int height = aHeight > 0 ? aHeight : Math.max(1, staticLayout.getHeight());
+
+        Bitmap bitmap = aReuseBitmap ? renderState.bitmap : null;
+
+        if (bitmap == null || bitmap.getWidth() != aWidth || bitmap.getHeight() != height) {
+            bitmap = Bitmap.createBitmap(aWidth, height, mBitmapConfig);
+        }
+
+        if (aReuseBitmap) {
+            renderState.bitmap = bitmap;
+        }
+
+        bitmap.eraseColor(mBackgroundColor);
+
+        renderState.canvas.setBitmap(bitmap);
+        staticLayout.draw(renderState.canvas);
+        renderState.canvas.setBitmap(null);
+
+        return bitmap;
+    }
+
+    // Renders into a new bitmap, owned by the caller.
+
+    public @NonNull Future<Bitmap> render(final @NonNull Spanned aText, final int aWidth, final int aHeight) {
+        return mExecutorService.submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return draw(aText, aWidth, aHeight, false);
+            }
+        });
+    }
+
+    // Renders into the bitmap of the rendering thread, avoiding an
+    // allocation per render when only its pixels are needed, for
+    // instance to compress them.
+
+    public @NonNull Future<?> render(final @NonNull Spanned aText, final int aWidth, final int aHeight,
+                                     final @NonNull OnRenderedListener aListener) {
+        return mExecutorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                aListener.onRendered(aText, draw(aText, aWidth, aHeight, true));
+            }
+        });
+    }
+
+    public void shutdown() {
+        mExecutorService.shutdown();
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.Spanned;
+import android.text.TextPaint;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// Debug rendering of spans, for performance triage on a real screen.
+// When enabled, top level spans record the time spent in getSize() and
+// draw() and are drawn with the outlines of their elements, the
+// spacing added by the alignment, the ruby band, and a tint going from
+// green to red with their measure time, draw time or element count.
+// dump() writes the same data as text, one span or element per line.
+//
+// Recording slows down measuring and drawing, and should stay disabled
+// outside of debugging sessions.
+
+public abstract class RubyDebug {
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({HeatMode.NONE, HeatMode.MEASURE_TIME,
+            HeatMode.DRAW_TIME, HeatMode.ELEMENT_COUNT})
+    public @interface HeatMode {
+        int NONE = 0;
+        int MEASURE_TIME = 1;
+        int DRAW_TIME = 2;
+        int ELEMENT_COUNT = 3;
+    }
+
+    public static class SpanStatistics {
+        int measureCount;
+        long measureNanos;
+        int drawCount;
+        long drawNanos;
+        int elementCount;
+        int size;
+
+        public int getMeasureCount() {
+            return measureCount;
+        }
+
+        public long getMeasureNanos() {
+            return measureNanos;
+        }
+
+        public int getDrawCount() {
+            return drawCount;
+        }
+
+        public long getDrawNanos() {
+            return drawNanos;
+        }
+
+        // Elements of the text and the furigana, known once drawn
+        public int getElementCount() {
+            return elementCount;
+        }
+    }
+
+    private static final int ELEMENT_COLOR = 0xFF2196F3;
+    private static final int GAP_COLOR = 0x40FF9800;
+    private static final int RUBY_BAND_COLOR = 0x309C27B0;
+    private static final int HEAT_ALPHA = 0x60;
+
+    private static final WeakHashMap<SuperReplacementSpan, SpanStatistics> sStatistics = new WeakHashMap<>();
+
+    private static final ThreadLocal<Paint> sDebugPaint = new ThreadLocal<Paint>() {
+        @Override
+        protected Paint initialValue() {
+            return new Paint();
+        }
+    };
+
+    private static volatile boolean sEnabled = false;
+    private static volatile @HeatMode int sHeatMode = HeatMode.MEASURE_TIME;
+
+    // Values reaching these are drawn fully red
+    private static volatile long sMaxMeasureNanos = 1000000;
+    private static volatile long sMaxDrawNanos = 1000000;
+    private static volatile int sMaxElementCount = 32;
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    // Views displaying the text should be invalidated and their layout
+    // requested, spans being measured again only when the text changes.
+
+    public static void setEnabled(final boolean aEnabled) {
+        sEnabled = aEnabled;
+    }
+
+    public static @HeatMode int getHeatMode() {
+        return sHeatMode;
+    }
+
+    public static void setHeatMode(final @HeatMode int aHeatMode) {
+        sHeatMode = aHeatMode;
+    }
+
+    public static void setHeatScale(final long aMaxMeasureNanos, final long aMaxDrawNanos,
+                                    final int aMaxElementCount) {
+        if (aMaxMeasureNanos > 0) {
+            sMaxMeasureNanos = aMaxMeasureNanos;
+        }
+
+        if (aMaxDrawNanos > 0) {
+            sMaxDrawNanos = aMaxDrawNanos;
+        }
+
+        if (aMaxElementCount > 0) {
+            sMaxElementCount = aMaxElementCount;
+        }
+    }
+
+    // Copy of the statistics recorded for aSpan, or null
+    public static @Nullable SpanStatistics getStatistics(final @NonNull SuperReplacementSpan aSpan) {
+        synchronized (sStatistics) {
+            final SpanStatistics statistics = sStatistics.get(aSpan);
+
+            if (statistics == null) {
+                return null;
+            }
+
+            final SpanStatistics copy = new SpanStatistics();
+
+            copy.measureCount = statistics.measureCount;
+            copy.measureNanos = statistics.measureNanos;
+            copy.drawCount = statistics.drawCount;
+            copy.drawNanos = statistics.drawNanos;
+            copy.elementCount = statistics.elementCount;
+            copy.size = statistics.size;
+
+            return copy;
+        }
+    }
+
+    public static void clearStatistics() {
+        synchronized (sStatistics) {
+            sStatistics.clear();
+        }
+    }
+
+    private static @NonNull SpanStatistics getOrCreateStatistics(final @NonNull SuperReplacementSpan aSpan) {
+        SpanStatistics statistics = sStatistics.get(aSpan);
+
+        if (statistics == null) {
+            statistics = new SpanStatistics();
+            sStatistics.put(aSpan, statistics);
+        }
+
+        return statistics;
+    }
+
+    static void recordMeasure(final @NonNull SuperReplacementSpan aSpan, final long aNanos, final int aSize) {
+        synchronized (sStatistics) {
+            final SpanStatistics statistics = getOrCreateStatistics(aSpan);
+
+            statistics.measureCount++;
+            statistics.measureNanos += aNanos;
+            statistics.size = aSize;
+        }
+    }
+
+    static void recordDraw(final @NonNull SuperReplacementSpan aSpan, final long aNanos) {
+        synchronized (sStatistics) {
+            final SpanStatistics statistics = getOrCreateStatistics(aSpan);
+
+            statistics.drawCount++;
+            statistics.drawNanos += aNanos;
+        }
+    }
+
+    static void recordElementCount(final @NonNull SuperReplacementSpan aSpan, final int aElementCount) {
+        synchronized (sStatistics) {
+            getOrCreateStatistics(aSpan).elementCount = aElementCount;
+        }
+    }
+
+    // Heat of aStatistics between 0 and 1 in the current mode
+    static float getHeat(final @NonNull SpanStatistics aStatistics) {
+        final float heat;
+
+        switch (sHeatMode) {
+            case HeatMode.MEASURE_TIME:
+                heat = aStatistics.measureCount == 0 ? 0 :
+                        (float) aStatistics.measureNanos / aStatistics.measureCount / sMaxMeasureNanos;
+                break;
+            case HeatMode.DRAW_TIME:
+                heat = aStatistics.drawCount == 0 ? 0 :
+                        (float) aStatistics.drawNanos / aStatistics.drawCount / sMaxDrawNanos;
+                break;
+            case HeatMode.ELEMENT_COUNT:
+                heat = (float) aStatistics.elementCount / sMaxElementCount;
+                break;
+            default:
+                heat = 0;
+        }
+
+        return Math.min(1, heat);
+    }
+
+    static int getHeatColor(final float aHeat) {
+        final int red = Math.round(0xFF * Math.min(1, 2 * aHeat));
+        final int green = Math.round(0xFF * Math.min(1, 2 * (1 - aHeat)));
+
+        return (HEAT_ALPHA << 24) | (red << 16) | (green << 8);
+    }
+
+    static void drawOverlay(final @NonNull SuperReplacementSpan aSpan,
+                            final @NonNull Canvas aCanvas,
+                            final CharSequence aText, final int aStart, final int aEnd,
+                            final float aX, final int aTop, final int aY, final int aBottom,
+                            final @NonNull Paint aPaint) {
+        final Paint debugPaint = sDebugPaint.get();
+
+        debugPaint.reset();
+        aSpan.drawDebugOverlay(aCanvas, aText, aStart, aEnd, aX, aY, aPaint, debugPaint);
+
+        final SpanStatistics statistics = getStatistics(aSpan);
+
+        if (sHeatMode == HeatMode.NONE || statistics == null) {
+            return;
+        }
+
+        debugPaint.reset();
+        debugPaint.setStyle(Paint.Style.FILL);
+        debugPaint.setColor(getHeatColor(getHeat(statistics)));
+
+        aCanvas.drawRect(aX, aTop, aX + statistics.size, aBottom, debugPaint);
+    }
+
+    static void drawRubyBand(final @NonNull Canvas aCanvas,
+                             final float aLeft, final float aRight, final int aTop, final int aBottom,
+                             final @NonNull Paint aDebugPaint) {
+        aDebugPaint.setStyle(Paint.Style.FILL);
+        aDebugPaint.setColor(RUBY_BAND_COLOR);
+
+        aCanvas.drawRect(aLeft, aTop, aRight, aBottom, aDebugPaint);
+    }
+
+    // Outlines aligned elements, and fills the spacing around them
+    static void drawElements(final @NonNull SuperReplacementSpan.TextSizeInformation aTextSizeInformation,
+                             final @NonNull Canvas aCanvas,
+                             final float aStartX,
+                             final int aY,
+                             final @NonNull Paint aDebugPaint) {
+        float cursor = aStartX;
+
+        for (SuperReplacementSpan.CharSequenceSizedElement charSequenceSizedElement :
+                aTextSizeInformation.charSequenceSizedElements) {
+            final int top = aY + charSequenceSizedElement.fontMetricsInt.ascent;
+            final int bottom = aY + charSequenceSizedElement.fontMetricsInt.descent;
+            final float left = cursor + charSequenceSizedElement.spaceBefore;
+            final float right = left + charSequenceSizedElement.size;
+
+            aDebugPaint.setStyle(Paint.Style.FILL);
+            aDebugPaint.setColor(GAP_COLOR);
+
+            if (charSequenceSizedElement.spaceBefore > 0) {
+                aCanvas.drawRect(cursor, top, left, bottom, aDebugPaint);
+            }
+
+            if (charSequenceSizedElement.spaceAfter > 0) {
+                aCanvas.drawRect(right, top, right + charSequenceSizedElement.spaceAfter, bottom, aDebugPaint);
+            }
+
+            aDebugPaint.setStyle(Paint.Style.STROKE);
+            aDebugPaint.setStrokeWidth(0);
+            aDebugPaint.setColor(ELEMENT_COLOR);
+
+            aCanvas.drawRect(left, top, right, bottom, aDebugPaint);
+
+            cursor = right + charSequenceSizedElement.spaceAfter;
+        }
+    }
+
+    // Writes the top level spans of aText measured with aPaint, their
+    // statistics and their aligned elements, in the following format:
+    //
+    // span <class> <start> <end> text=<text> [furigana=<furigana>] width=<width>
+    //     ascent=<ascent> descent=<descent> measures=<count> measureNanos=<nanos>
+    //     draws=<count> drawNanos=<nanos>
+    //   <part> <start> <end> text=<text> x=<x> width=<width> before=<space> after=<space>
+    //
+    // each span or element on a single line, <part> being text or furigana.
+
+    public static void dump(final @NonNull Spanned aText, final @NonNull TextPaint aPaint,
+                            final @NonNull Appendable aAppendable) throws IOException {
+        final TextPaint workPaint = new TextPaint();
+        final Paint.FontMetricsInt fontMetricsInt = new Paint.FontMetricsInt();
+
+        for (SuperReplacementSpan span : RubySnapshot.getTopLevelSpans(aText)) {
+            final int start = aText.getSpanStart(span);
+            final int end = aText.getSpanEnd(span);
+
+            RubyLayoutPrefetcher.updateMeasureState(aText, start, end, aPaint, workPaint);
+
+            final int width = span.getExactSize(workPaint, aText, start, end, fontMetricsInt);
+
+            aAppendable.append(String.format(Locale.ROOT, "span %s %d %d text=%s",
+                    span.getClass().getSimpleName(), start, end, escape(aText.subSequence(start, end))));
+
+            if (span instanceof SuperRubySpan) {
+                aAppendable.append(" furigana=").append(escape(((SuperRubySpan) span).getFurigana()));
+            }
+
+            final SpanStatistics statistics = getStatistics(span);
+
+            aAppendable.append(String.format(Locale.ROOT, " width=%d ascent=%d descent=%d measures=%d measureNanos=%d draws=%d drawNanos=%d\n",
+                    width, fontMetricsInt.ascent, fontMetricsInt.descent,
+                    statistics == null ? 0 : statistics.measureCount,
+                    statistics == null ? 0 : statistics.measureNanos,
+                    statistics == null ? 0 : statistics.drawCount,
+                    statistics == null ? 0 : statistics.drawNanos));
+
+            span.dumpDebug(aAppendable, aText, start, end, workPaint);
+        }
+    }
+
+    static void dumpElements(final @NonNull Appendable aAppendable,
+                             final @NonNull String aPart,
+                             final @NonNull CharSequence aText,
+                             final @NonNull SuperReplacementSpan.TextSizeInformation aTextSizeInformation) throws IOException {
+        float cursor = 0;
+
+        for (SuperReplacementSpan.CharSequenceSizedElement charSequenceSizedElement :
+                aTextSizeInformation.charSequenceSizedElements) {
+            final int start = charSequenceSizedElement.charSequenceElement.start;
+            final int end = charSequenceSizedElement.charSequenceElement.end;
+
+            aAppendable.append(String.format(Locale.ROOT, "  %s %d %d text=%s x=%.1f width=%.1f before=%.1f after=%.1f\n",
+                    aPart, start, end, escape(aText.subSequence(start, end)),
+                    cursor + charSequenceSizedElement.spaceBefore, charSequenceSizedElement.size,
+                    charSequenceSizedElement.spaceBefore, charSequenceSizedElement.spaceAfter));
+
+            cursor += charSequenceSizedElement.spaceBefore + charSequenceSizedElement.size + charSequenceSizedElement.spaceAfter;
+        }
+    }
+
+    // Keeps each entry on one line, with spaces as field separators
+    private static @NonNull String escape(final @NonNull CharSequence aText) {
+        return aText.toString().replace("\\", "\\\\").replace("\n", "\\n").replace(" ", "\\s");
+    }
+}
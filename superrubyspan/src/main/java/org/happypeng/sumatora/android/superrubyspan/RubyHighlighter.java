@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Color;
+import android.text.Spanned;
+
+import androidx.annotation.ColorInt;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedList;
+
+// Draw time highlight of a range of the base text and of the furigana
+// of one span, for read-along. Only colors are changed when drawing:
+// moving the highlight requires no measure and no layout, listeners are
+// expected to invalidate the view displaying the text.
+//
+// Offsets are relative to the start of the span in the base text, and
+// to the start of its furigana.
+
+public class RubyHighlighter {
+    public interface OnHighlightChangedListener {
+        void onHighlightChanged(@NonNull RubyHighlighter aRubyHighlighter);
+    }
+
+    static class Highlight {
+        final @NonNull SuperReplacementSpan span;
+        final int textStart;
+        final int textEnd;
+        final int furiganaStart;
+        final int furiganaEnd;
+        final @ColorInt int color;
+
+        Highlight(final @NonNull SuperReplacementSpan aSpan,
+                  final int aTextStart, final int aTextEnd,
+                  final int aFuriganaStart, final int aFuriganaEnd,
+                  final @ColorInt int aColor) {
+            span = aSpan;
+            textStart = aTextStart;
+            textEnd = aTextEnd;
+            furiganaStart = aFuriganaStart;
+            furiganaEnd = aFuriganaEnd;
+            color = aColor;
+        }
+    }
+
+    private final LinkedList<OnHighlightChangedListener> mListeners;
+
+    private volatile @ColorInt int mColor;
+    private volatile @Nullable Highlight mHighlight;
+
+    public RubyHighlighter() {
+        this(Color.RED);
+    }
+
+    public RubyHighlighter(final @ColorInt int aColor) {
+        mListeners = new LinkedList<>();
+        mColor = aColor;
+        mHighlight = null;
+    }
+
+    // Sets aRubyHighlighter on all the SuperReplacementSpan instances of
+    // aText, including the ones nested in furigana.
+
+    public static void attach(final @NonNull Spanned aText, final @Nullable RubyHighlighter aRubyHighlighter) {
+        for (final SuperReplacementSpan span : aText.getSpans(0, aText.length(), SuperReplacementSpan.class)) {
+            span.setRubyHighlighter(aRubyHighlighter);
+
+            if (span instanceof SuperRubySpan) {
+                final CharSequence furigana = ((SuperRubySpan) span).getFurigana();
+
+                if (furigana instanceof Spanned) {
+                    attach((Spanned) furigana, aRubyHighlighter);
+                }
+            }
+        }
+    }
+
+    public @ColorInt int getColor() {
+        return mColor;
+    }
+
+    public void setColor(final @ColorInt int aColor) {
+        mColor = aColor;
+
+        final Highlight highlight = mHighlight;
+
+        if (highlight != null) {
+            setHighlight(new Highlight(highlight.span, highlight.textStart, highlight.textEnd,
+                    highlight.furiganaStart, highlight.furiganaEnd, aColor));
+        }
+    }
+
+    public void setHighlight(final @NonNull SuperReplacementSpan aSpan,
+                             final int aTextStart, final int aTextEnd) {
+        setHighlight(new Highlight(aSpan, aTextStart, aTextEnd, 0, 0, mColor));
+    }
+
+    public void setHighlight(final @NonNull SuperRubySpan aSpan,
+                             final int aTextStart, final int aTextEnd,
+                             final int aFuriganaStart, final int aFuriganaEnd) {
+        setHighlight(new Highlight(aSpan, aTextStart, aTextEnd, aFuriganaStart, aFuriganaEnd, mColor));
+    }
+
+    public void clearHighlight() {
+        if (mHighlight != null) {
+            setHighlight(null);
+        }
+    }
+
+    public @Nullable SuperReplacementSpan getHighlightedSpan() {
+        final Highlight highlight = mHighlight;
+
+        return highlight == null ? null : highlight.span;
+    }
+
+    private void setHighlight(final @Nullable Highlight aHighlight) {
+        mHighlight = aHighlight;
+
+        for (final OnHighlightChangedListener listener : new LinkedList<>(mListeners)) {
+            listener.onHighlightChanged(this);
+        }
+    }
+
+    @Nullable Highlight getHighlight(final @NonNull SuperReplacementSpan aSpan) {
+        final Highlight highlight = mHighlight;
+
+        return highlight != null && highlight.span == aSpan ? highlight : null;
+    }
+
+    public void addOnHighlightChangedListener(final @NonNull OnHighlightChangedListener aListener) {
+        if (!mListeners.contains(aListener)) {
+            mListeners.add(aListener);
+        }
+    }
+
+    public void removeOnHighlightChangedListener(final @NonNull OnHighlightChangedListener aListener) {
+        mListeners.remove(aListener);
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.style.CharacterStyle;
+import android.text.style.MetricAffectingSpan;
+import android.text.style.ReplacementSpan;
+
+import androidx.annotation.NonNull;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.Kinsoku;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+// Lays out ruby annotated text in a single pass, as an alternative to
+// StaticLayout. Ruby is given by SuperRubySpan instances set directly on
+// the base text, which do not need every other character to be wrapped
+// in a SuperReplacementSpan: lines are broken between any two characters
+// allowed by the kinsoku rules, and each line is as high as the ruby it
+// contains requires.
+//
+// The text is split in runs, which are either a range of characters
+// sharing the same style or a single top level replacement span. Runs
+// are measured once, then lines are broken and drawn from the runs.
+
+public class RubyLayout {
+    private final CharSequence mText;
+    private final int mWidth;
+
+    private final float[] mAdvances;
+
+    private int mRunCount;
+    private int[] mRunStarts;
+    private int[] mRunEnds;
+    private int[] mRunAscents;
+    private int[] mRunDescents;
+    private TextPaint[] mRunPaints;
+    private ReplacementSpan[] mRunReplacementSpans;
+
+    private int mLineCount;
+    private int[] mLineStarts;
+    private int[] mLineEnds;
+    private int[] mLineTops;
+    private int[] mLineBaselines;
+    private float[] mLineWidths;
+
+    private float mMaxLineWidth;
+    private float mBreakingWidth;
+
+    private SuperReplacementSpan.StyleTable mStyleTable;
+    private int mMetricsRun;
+
+    private final Paint.FontMetricsInt mFontMetricsInt;
+    private final Paint mBackgroundPaint;
+    private final Rect mClipRect;
+
+    public RubyLayout(final @NonNull CharSequence aText,
+                      final @NonNull TextPaint aPaint,
+                      final int aWidth) {
+        mText = aText;
+        mWidth = aWidth;
+
+        mAdvances = new float[aText.length()];
+
+        mRunStarts = new int[16];
+        mRunEnds = new int[16];
+        mRunAscents = new int[16];
+        mRunDescents = new int[16];
+        mRunPaints = new TextPaint[16];
+        mRunReplacementSpans = new ReplacementSpan[16];
+
+        mLineStarts = new int[16];
+        mLineEnds = new int[16];
+        mLineTops = new int[17];
+        mLineBaselines = new int[16];
+        mLineWidths = new float[16];
+
+        mMaxLineWidth = 0;
+        mBreakingWidth = Float.POSITIVE_INFINITY;
+
+        mFontMetricsInt = new Paint.FontMetricsInt();
+        mBackgroundPaint = new Paint();
+        mBackgroundPaint.setStyle(Paint.Style.FILL);
+        mClipRect = new Rect();
+
+        measureRuns(aPaint);
+        breakLines(aPaint);
+    }
+
+    private static ReplacementSpan[] getTopLevelReplacementSpans(final @NonNull Spanned aText) {
+        final ReplacementSpan[] replacementSpans = aText.getSpans(0, aText.length(), ReplacementSpan.class);
+
+        Arrays.sort(replacementSpans, new Comparator<ReplacementSpan>() {
+            @Override
+            public int compare(final ReplacementSpan aFirst, final ReplacementSpan aSecond) {
+                final int startDifference = aText.getSpanStart(aFirst) - aText.getSpanStart(aSecond);
+
+                return startDifference != 0 ? startDifference :
+                        aText.getSpanEnd(aSecond) - aText.getSpanEnd(aFirst);
+            }
+        });
+
+        final LinkedList<ReplacementSpan> topLevelSpans = new LinkedList<>();
+        int end = 0;
+
+        for (ReplacementSpan replacementSpan : replacementSpans) {
+            if (aText.getSpanStart(replacementSpan) >= end &&
+                    aText.getSpanEnd(replacementSpan) > aText.getSpanStart(replacementSpan)) {
+                topLevelSpans.add(replacementSpan);
+
+                end = aText.getSpanEnd(replacementSpan);
+            }
+        }
+
+        return topLevelSpans.toArray(new ReplacementSpan[0]);
+    }
+
+    private static int getStyleIndex(final @NonNull SuperReplacementSpan.StyleTable aStyleTable,
+                                     final Spanned aText,
+                                     final int aStart,
+                                     final int aEnd) {
+        if (aText == null) {
+            return aStyleTable.getStyleIndex(null, null);
+        }
+
+        LinkedList<MetricAffectingSpan> metricAffectingSpans = null;
+        LinkedList<CharacterStyle> characterStyles = null;
+
+        for (CharacterStyle characterStyle : aText.getSpans(aStart, aEnd, CharacterStyle.class)) {
+            if (characterStyle instanceof ReplacementSpan ||
+                    aText.getSpanStart(characterStyle) > aStart ||
+                    aText.getSpanEnd(characterStyle) < aEnd) {
+                continue;
+            }
+
+            if (characterStyle instanceof MetricAffectingSpan) {
+                if (metricAffectingSpans == null) {
+                    metricAffectingSpans = new LinkedList<>();
+                }
+
+                metricAffectingSpans.add((MetricAffectingSpan) characterStyle);
+            }
+
+            if (characterStyles == null) {
+                characterStyles = new LinkedList<>();
+            }
+
+            characterStyles.add(characterStyle);
+        }
+
+        return aStyleTable.getStyleIndex(metricAffectingSpans, characterStyles);
+    }
+
+    private void addRun(final int aStart, final int aEnd,
+                        final @NonNull TextPaint aPaint,
+                        final ReplacementSpan aReplacementSpan,
+                        final @NonNull Paint.FontMetricsInt aFontMetricsInt) {
+        if (mRunCount == mRunStarts.length) {
+            final int length = mRunCount * 2;
+
+            mRunStarts = Arrays.copyOf(mRunStarts, length);
+            mRunEnds = Arrays.copyOf(mRunEnds, length);
+            mRunAscents = Arrays.copyOf(mRunAscents, length);
+            mRunDescents = Arrays.copyOf(mRunDescents, length);
+            mRunPaints = Arrays.copyOf(mRunPaints, length);
+            mRunReplacementSpans = Arrays.copyOf(mRunReplacementSpans, length);
+        }
+
+        mRunStarts[mRunCount] = aStart;
+        mRunEnds[mRunCount] = aEnd;
+        mRunAscents[mRunCount] = aFontMetricsInt.ascent;
+        mRunDescents[mRunCount] = aFontMetricsInt.descent;
+        mRunPaints[mRunCount] = aPaint;
+        mRunReplacementSpans[mRunCount] = aReplacementSpan;
+
+        mRunCount++;
+    }
+
+    private void measureRuns(final @NonNull TextPaint aPaint) {
+        final Spanned spanned = mText instanceof Spanned ? (Spanned) mText : null;
+        final ReplacementSpan[] replacementSpans = spanned != null ?
+                getTopLevelReplacementSpans(spanned) : new ReplacementSpan[0];
+        final SuperReplacementSpan.StyleTable styleTable = new SuperReplacementSpan.StyleTable(aPaint);
+        final int length = mText.length();
+
+        mStyleTable = styleTable;
+
+        float[] widths = new float[64];
+        int replacementSpanIndex = 0;
+        int cursor = 0;
+
+        while (cursor < length) {
+            if (replacementSpanIndex < replacementSpans.length &&
+                    spanned.getSpanStart(replacementSpans[replacementSpanIndex]) == cursor) {
+                final ReplacementSpan replacementSpan = replacementSpans[replacementSpanIndex];
+                final int spanEnd = spanned.getSpanEnd(replacementSpan);
+                final TextPaint textPaint = styleTable.textPaints.get(getStyleIndex(styleTable, spanned, cursor, spanEnd));
+                final Paint.FontMetricsInt fontMetricsInt = new Paint.FontMetricsInt();
+
+                textPaint.getFontMetricsInt(fontMetricsInt);
+
+                mAdvances[cursor] = replacementSpan.getSize(textPaint, mText, cursor, spanEnd, fontMetricsInt);
+
+                addRun(cursor, spanEnd, textPaint, replacementSpan, fontMetricsInt);
+
+                replacementSpanIndex++;
+                cursor = spanEnd;
+
+                continue;
+            }
+
+            int runEnd = replacementSpanIndex < replacementSpans.length ?
+                    spanned.getSpanStart(replacementSpans[replacementSpanIndex]) : length;
+
+            if (spanned != null) {
+                runEnd = spanned.nextSpanTransition(cursor, runEnd, CharacterStyle.class);
+            }
+
+            final int styleIndex = getStyleIndex(styleTable, spanned, cursor, runEnd);
+            final TextPaint textPaint = styleTable.textPaints.get(styleIndex);
+
+            if (widths.length < runEnd - cursor) {
+                widths = new float[Math.max(runEnd - cursor, widths.length * 2)];
+            }
+
+            textPaint.getTextWidths(mText, cursor, runEnd, widths);
+            System.arraycopy(widths, 0, mAdvances, cursor, runEnd - cursor);
+
+            addRun(cursor, runEnd, textPaint, null, styleTable.fontMetricsInts.get(styleIndex));
+
+            cursor = runEnd;
+        }
+    }
+
+    private float getWidth(final int aStart, final int aEnd) {
+        float width = 0;
+
+        for (int i = aStart; i < aEnd; i++) {
+            width += mAdvances[i];
+        }
+
+        return width;
+    }
+
+    private void addLine(final int aStart, final int aEnd, final float aWidth,
+                         final @NonNull TextPaint aPaint) {
+        if (mLineCount == mLineStarts.length) {
+            final int length = mLineCount * 2;
+
+            mLineStarts = Arrays.copyOf(mLineStarts, length);
+            mLineEnds = Arrays.copyOf(mLineEnds, length);
+            mLineTops = Arrays.copyOf(mLineTops, length + 1);
+            mLineBaselines = Arrays.copyOf(mLineBaselines, length);
+            mLineWidths = Arrays.copyOf(mLineWidths, length);
+        }
+
+        while (mMetricsRun < mRunCount - 1 && mRunEnds[mMetricsRun] <= aStart) {
+            mMetricsRun++;
+        }
+
+        int ascent = 0;
+        int descent = 0;
+
+        if (mRunCount == 0) {
+            aPaint.getFontMetricsInt(mFontMetricsInt);
+
+            ascent = mFontMetricsInt.ascent;
+            descent = mFontMetricsInt.descent;
+        } else {
+            int run = mMetricsRun;
+
+            do {
+                ascent = Math.min(ascent, mRunAscents[run]);
+                descent = Math.max(descent, mRunDescents[run]);
+
+                run++;
+            } while (run < mRunCount && mRunStarts[run] < aEnd);
+        }
+
+        mLineStarts[mLineCount] = aStart;
+        mLineEnds[mLineCount] = aEnd;
+        mLineBaselines[mLineCount] = mLineTops[mLineCount] - ascent;
+        mLineTops[mLineCount + 1] = mLineTops[mLineCount] + descent - ascent;
+        mLineWidths[mLineCount] = aWidth;
+        mMaxLineWidth = Math.max(mMaxLineWidth, aWidth);
+
+        mLineCount++;
+    }
+
+    private void breakLines(final @NonNull TextPaint aPaint) {
+        final int length = mText.length();
+
+        int run = 0;
+        int lineStart = 0;
+        int breakPosition = -1;
+        int previousCodePoint = 0;
+        float lineWidth = 0;
+        int cursor = 0;
+
+        while (cursor < length) {
+            while (mRunEnds[run] <= cursor) {
+                run++;
+            }
+
+            final boolean replacement = mRunReplacementSpans[run] != null;
+            final int codePoint = Character.codePointAt(mText, cursor);
+            final int unitEnd = replacement ? mRunEnds[run] : cursor + Character.charCount(codePoint);
+
+            if (!replacement && codePoint == '\n') {
+                addLine(lineStart, unitEnd, lineWidth, aPaint);
+
+                lineStart = unitEnd;
+                lineWidth = 0;
+                breakPosition = -1;
+                cursor = unitEnd;
+
+                continue;
+            }
+
+            final float unitWidth = getWidth(cursor, unitEnd);
+
+            if (cursor > lineStart && Kinsoku.canBreakBetween(previousCodePoint, codePoint)) {
+                breakPosition = cursor;
+            }
+
+            if (cursor > lineStart && lineWidth + unitWidth > mWidth) {
+                mBreakingWidth = Math.min(mBreakingWidth, lineWidth + unitWidth);
+
+                final int lineEnd = breakPosition > lineStart ? breakPosition : cursor;
+                final float remainingWidth = getWidth(lineEnd, cursor);
+
+                addLine(lineStart, lineEnd, lineWidth - remainingWidth, aPaint);
+
+                lineStart = lineEnd;
+                lineWidth = remainingWidth;
+                breakPosition = -1;
+            }
+
+            lineWidth += unitWidth;
+            previousCodePoint = Character.codePointBefore(mText, unitEnd);
+            cursor = unitEnd;
+        }
+
+        if (lineStart < length || mLineCount == 0 || mText.charAt(length - 1) == '\n') {
+            addLine(lineStart, length, lineWidth, aPaint);
+        }
+    }
+
+    public @NonNull CharSequence getText() {
+        return mText;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    // Whether a layout of the same text and paint at aWidth would break
+    // the same lines, in which case this layout can be used instead:
+    // every line fits in aWidth, and no line broken because it was too
+    // wide would fit in it
+    public boolean breaksLinesAt(final int aWidth) {
+        return aWidth == mWidth || (aWidth >= mMaxLineWidth && aWidth < mBreakingWidth);
+    }
+
+    // Draws the text in aColor without laying it out again, colors set
+    // by spans being kept
+    public void setTextColor(final int aColor) {
+        mStyleTable.setColor(aColor);
+    }
+
+    public int getHeight() {
+        return mLineTops[mLineCount];
+    }
+
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    public int getLineStart(final int aLine) {
+        return mLineStarts[aLine];
+    }
+
+    public int getLineEnd(final int aLine) {
+        return mLineEnds[aLine];
+    }
+
+    public int getLineTop(final int aLine) {
+        return mLineTops[aLine];
+    }
+
+    public int getLineBottom(final int aLine) {
+        return mLineTops[aLine + 1];
+    }
+
+    public int getLineBaseline(final int aLine) {
+        return mLineBaselines[aLine];
+    }
+
+    public float getLineWidth(final int aLine) {
+        return mLineWidths[aLine];
+    }
+
+    public float getMaxLineWidth() {
+        return mMaxLineWidth;
+    }
+
+    public int getLineForVertical(final int aVertical) {
+        int low = 0;
+        int high = mLineCount - 1;
+
+        while (low < high) {
+            final int middle = (low + high + 1) / 2;
+
+            if (mLineTops[middle] <= aVertical) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low;
+    }
+
+    private int getFirstRun(final int aPosition) {
+        int low = 0;
+        int high = mRunCount - 1;
+
+        while (low < high) {
+            final int middle = (low + high) / 2;
+
+            if (mRunEnds[middle] <= aPosition) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private void drawLine(final @NonNull Canvas aCanvas, final int aLine) {
+        final int lineStart = mLineStarts[aLine];
+        int lineEnd = mLineEnds[aLine];
+        final int top = mLineTops[aLine];
+        final int baseline = mLineBaselines[aLine];
+        final int bottom = mLineTops[aLine + 1];
+
+        if (lineEnd > lineStart && mText.charAt(lineEnd - 1) == '\n') {
+            lineEnd--;
+        }
+
+        float x = 0;
+
+        for (int run = getFirstRun(lineStart); run < mRunCount && mRunStarts[run] < lineEnd; run++) {
+            final TextPaint textPaint = mRunPaints[run];
+
+            if (mRunReplacementSpans[run] != null) {
+                mRunReplacementSpans[run].draw(aCanvas, mText, mRunStarts[run], mRunEnds[run],
+                        x, top, baseline, bottom, textPaint);
+
+                x += mAdvances[mRunStarts[run]];
+
+                continue;
+            }
+
+            final int start = Math.max(mRunStarts[run], lineStart);
+            final int end = Math.min(mRunEnds[run], lineEnd);
+            final float width = getWidth(start, end);
+
+            if (textPaint.bgColor != 0) {
+                mBackgroundPaint.setColor(textPaint.bgColor);
+
+                aCanvas.drawRect(x, baseline + mRunAscents[run], x + width,
+                        baseline + mRunDescents[run], mBackgroundPaint);
+            }
+
+            aCanvas.drawText(mText, start, end, x, baseline + textPaint.baselineShift, textPaint);
+
+            x += width;
+        }
+    }
+
+    public void draw(final @NonNull Canvas aCanvas) {
+        int firstLine = 0;
+        int lastLine = mLineCount - 1;
+
+        if (aCanvas.getClipBounds(mClipRect)) {
+            firstLine = getLineForVertical(mClipRect.top);
+            lastLine = getLineForVertical(mClipRect.bottom);
+        }
+
+        for (int line = firstLine; line <= lastLine; line++) {
+            drawLine(aCanvas, line);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.style.MetricAffectingSpan;
+import android.text.style.ReplacementSpan;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Warms the measurement caches of the SuperReplacementSpan instances
+// of upcoming list items on a bounded background pool, so that binding
+// a row to a TextView finds its spans already measured.
+//
+// Pending items are run by increasing distance to the visible range
+// set with setViewport(), and items farther than the prefetch distance
+// are cancelled. Submitted text must not be modified until its
+// prefetch has completed or has been cancelled.
+
+public class RubyLayoutPrefetcher {
+    private static class PrefetchTask {
+        final int position;
+        final Spanned text;
+        final TextPaint paint;
+
+        PrefetchTask(final int aPosition,
+                     final @NonNull Spanned aText,
+                     final @NonNull TextPaint aPaint) {
+            position = aPosition;
+            text = aText;
+            paint = aPaint;
+        }
+    }
+
+    private final ExecutorService mExecutorService;
+    private final HashMap<Integer, PrefetchTask> mPendingTasks;
+    private final int mPrefetchDistance;
+
+    private int mFirstVisible;
+    private int mLastVisible;
+
+    public RubyLayoutPrefetcher(final int aThreadCount, final int aPrefetchDistance) {
+        this(createExecutorService(aThreadCount), aPrefetchDistance);
+    }
+
+    // Runs the prefetches on aExecutorService, which tests drive by hand
+    RubyLayoutPrefetcher(final @NonNull ExecutorService aExecutorService, final int aPrefetchDistance) {
+        mExecutorService = aExecutorService;
+        mPendingTasks = new HashMap<>();
+        mPrefetchDistance = aPrefetchDistance;
+
+        mFirstVisible = 0;
+        mLastVisible = 0;
+    }
+
+    public RubyLayoutPrefetcher() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), 10);
+    }
+
+    private static @NonNull ExecutorService createExecutorService(final int aThreadCount) {
+        final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(aThreadCount, aThreadCount,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final @NonNull Runnable aRunnable) {
+                        final Thread thread = new Thread(aRunnable, "RubyLayoutPrefetcher");
+
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+
+        return threadPoolExecutor;
+    }
+
+    private int getDistance(final int aPosition) {
+        if (aPosition < mFirstVisible) {
+            return mFirstVisible - aPosition;
+        }
+
+        if (aPosition > mLastVisible) {
+            return aPosition - mLastVisible;
+        }
+
+        return 0;
+    }
+
+    public void prefetch(final int aPosition,
+                         final @NonNull Spanned aText,
+                         final @NonNull TextPaint aPaint) {
+        synchronized (mPendingTasks) {
+            if (getDistance(aPosition) > mPrefetchDistance) {
+                return;
+            }
+
+            mPendingTasks.put(aPosition, new PrefetchTask(aPosition, aText, new TextPaint(aPaint)));
+        }
+
+        mExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                runNextTask();
+            }
+        });
+    }
+
+    public void setViewport(final int aFirstVisible, final int aLastVisible) {
+        synchronized (mPendingTasks) {
+            mFirstVisible = aFirstVisible;
+            mLastVisible = aLastVisible;
+
+            final Iterator<PrefetchTask> taskIterator = mPendingTasks.values().iterator();
+
+            while (taskIterator.hasNext()) {
+                if (getDistance(taskIterator.next().position) > mPrefetchDistance) {
+                    taskIterator.remove();
+                }
+            }
+        }
+    }
+
+    public void cancel(final int aPosition) {
+        synchronized (mPendingTasks) {
+            mPendingTasks.remove(aPosition);
+        }
+    }
+
+    public void cancelAll() {
+        synchronized (mPendingTasks) {
+            mPendingTasks.clear();
+        }
+    }
+
+    public void shutdown() {
+        cancelAll();
+
+        mExecutorService.shutdown();
+    }
+
+    // One run is queued on the executor for each prefetch, and each run
+    // picks the pending task closest to the viewport at that time.
+
+    private void runNextTask() {
+        PrefetchTask nextTask = null;
+
+        synchronized (mPendingTasks) {
+            for (PrefetchTask task : mPendingTasks.values()) {
+                if (nextTask == null || getDistance(task.position) < getDistance(nextTask.position)) {
+                    nextTask = task;
+                }
+            }
+
+            if (nextTask != null) {
+                mPendingTasks.remove(nextTask.position);
+            }
+        }
+
+        if (nextTask != null) {
+            measure(nextTask.text, nextTask.paint);
+        }
+    }
+
+    // Measures top level spans with the paint a StaticLayout would pass
+    // them, nested spans being measured and cached recursively.
+
+    static void measure(final @NonNull Spanned aText, final @NonNull TextPaint aPaint) {
+        final SuperReplacementSpan[] superReplacementSpans = aText.getSpans(0, aText.length(), SuperReplacementSpan.class);
+        final TextPaint workPaint = new TextPaint();
+        final Paint.FontMetricsInt fontMetricsInt = new Paint.FontMetricsInt();
+
+        for (SuperReplacementSpan superReplacementSpan : superReplacementSpans) {
+            final int spanStart = aText.getSpanStart(superReplacementSpan);
+            final int spanEnd = aText.getSpanEnd(superReplacementSpan);
+
+            if (isNested(aText, superReplacementSpan, spanStart, spanEnd)) {
+                continue;
+            }
+
+            updateMeasureState(aText, spanStart, spanEnd, aPaint, workPaint);
+
+            superReplacementSpan.getSize(workPaint, aText, spanStart, spanEnd, fontMetricsInt);
+        }
+    }
+
+    // Sets aWorkPaint to aPaint modified by the spans affecting the
+    // metrics of the whole range, as a StaticLayout would.
+
+    static void updateMeasureState(final @NonNull Spanned aText, final int aStart, final int aEnd,
+                                   final @NonNull TextPaint aPaint, final @NonNull TextPaint aWorkPaint) {
+        aWorkPaint.set(aPaint);
+
+        for (MetricAffectingSpan metricAffectingSpan : aText.getSpans(aStart, aEnd, MetricAffectingSpan.class)) {
+            if (!(metricAffectingSpan instanceof ReplacementSpan) &&
+                    aText.getSpanStart(metricAffectingSpan) <= aStart &&
+                    aText.getSpanEnd(metricAffectingSpan) >= aEnd) {
+                metricAffectingSpan.updateMeasureState(aWorkPaint);
+            }
+        }
+    }
+
+    static boolean isNested(final @NonNull Spanned aText,
+                                    final @NonNull ReplacementSpan aReplacementSpan,
+                                    final int aStart,
+                                    final int aEnd) {
+        for (ReplacementSpan replacementSpan : aText.getSpans(aStart, aEnd, ReplacementSpan.class)) {
+            if (replacementSpan != aReplacementSpan &&
+                    aText.getSpanStart(replacementSpan) <= aStart &&
+                    aText.getSpanEnd(replacementSpan) >= aEnd &&
+                    aText.getSpanEnd(replacementSpan) - aText.getSpanStart(replacementSpan) > aEnd - aStart) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
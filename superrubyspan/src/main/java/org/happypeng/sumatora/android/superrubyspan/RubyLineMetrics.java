@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.text.Spanned;
+import android.text.TextPaint;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+// Uniform line metrics: spans attached to it report the font metrics of
+// the paint they are given, with a ruby band of fixed height above them,
+// instead of metrics depending on their own furigana. All the lines of
+// a text measured with the same paint then have the same height, with
+// or without ruby, and positions of lines are computed with
+// getLineHeight() instead of walking the layout.
+//
+// The band fits furigana at aRelativeSize of the text size: larger
+// furigana are drawn over the line above.
+
+public class RubyLineMetrics {
+    private static class Metrics {
+        final float textSize;
+        final Typeface typeface;
+
+        final int ascent;
+        final int top;
+        final int descent;
+        final int bottom;
+        final int leading;
+
+        Metrics(final float aTextSize, final Typeface aTypeface,
+                final int aAscent, final int aTop, final int aDescent, final int aBottom, final int aLeading) {
+            textSize = aTextSize;
+            typeface = aTypeface;
+
+            ascent = aAscent;
+            top = aTop;
+            descent = aDescent;
+            bottom = aBottom;
+            leading = aLeading;
+        }
+    }
+
+    private final float mRelativeSize;
+
+    private volatile @Nullable Metrics mMetrics;
+
+    public RubyLineMetrics(final float aRelativeSize) {
+        mRelativeSize = aRelativeSize;
+    }
+
+    public float getRelativeSize() {
+        return mRelativeSize;
+    }
+
+    // Sets aRubyLineMetrics on the top level SuperReplacementSpan
+    // instances of aText, nested spans being laid out by their parent.
+
+    public static void attach(final @NonNull Spanned aText, final @Nullable RubyLineMetrics aRubyLineMetrics) {
+        for (final SuperReplacementSpan span : aText.getSpans(0, aText.length(), SuperReplacementSpan.class)) {
+            if (!RubyLayoutPrefetcher.isNested(aText, span, aText.getSpanStart(span), aText.getSpanEnd(span))) {
+                span.setRubyLineMetrics(aRubyLineMetrics);
+            }
+        }
+    }
+
+    // Metrics of the last paint are kept, all the spans of a text being
+    // usually measured with the same one.
+
+    private @NonNull Metrics getMetrics(final @NonNull Paint aPaint) {
+        final Metrics metrics = mMetrics;
+
+        if (metrics != null && metrics.textSize == aPaint.getTextSize() &&
+                metrics.typeface == aPaint.getTypeface()) {
+            return metrics;
+        }
+
+        final Paint.FontMetricsInt textMetrics = aPaint.getFontMetricsInt();
+        final TextPaint rubyPaint = new TextPaint(aPaint);
+
+        rubyPaint.setTextSize(aPaint.getTextSize() * mRelativeSize);
+
+        final Paint.FontMetricsInt rubyMetrics = rubyPaint.getFontMetricsInt();
+        final int band = rubyMetrics.descent - rubyMetrics.ascent;
+
+        final Metrics newMetrics = new Metrics(aPaint.getTextSize(), aPaint.getTypeface(),
+                textMetrics.ascent - band, textMetrics.top - band,
+                textMetrics.descent, textMetrics.bottom, textMetrics.leading);
+
+        mMetrics = newMetrics;
+
+        return newMetrics;
+    }
+
+    void apply(final @NonNull Paint aPaint, final @NonNull Paint.FontMetricsInt aFontMetricsInt) {
+        final Metrics metrics = getMetrics(aPaint);
+
+        aFontMetricsInt.ascent = metrics.ascent;
+        aFontMetricsInt.top = metrics.top;
+        aFontMetricsInt.descent = metrics.descent;
+        aFontMetricsInt.bottom = metrics.bottom;
+        aFontMetricsInt.leading = metrics.leading;
+    }
+
+    // Height of every line laid out with aPaint, without spacing
+    public int getLineHeight(final @NonNull Paint aPaint) {
+        final Metrics metrics = getMetrics(aPaint);
+
+        return metrics.descent - metrics.ascent;
+    }
+
+    // Distance from the top of a line to its baseline
+    public int getBaselineOffset(final @NonNull Paint aPaint) {
+        return -getMetrics(aPaint).ascent;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Paint;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Process-wide cache of the measurements of all SuperReplacementSpan
+// instances, evicted in least recently used order once the approximate
+// retained size of its entries exceeds the configured budget.
+//
+// Register getComponentCallbacks() with Context.registerComponentCallbacks()
+// to have the cache shrink or clear itself when the system is low on memory.
+
+public class RubyMeasureCache {
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final int ENTRY_COUNT = 2;
+    private static final int ENTRY_BYTES = 80;
+
+    private static final RubyMeasureCache sInstance = new RubyMeasureCache(DEFAULT_MAX_BYTES);
+
+    // Two measurements are kept for each cache slot, because layout and
+    // drawing usually pass paints differing in their draw state only.
+
+    private static class Entry {
+        final MeasureKey[] keys;
+        final SuperReplacementSpan.TextSizeInformation[] values;
+        final int bytes;
+
+        Entry(final @NonNull MeasureKey[] aKeys,
+              final @NonNull SuperReplacementSpan.TextSizeInformation[] aValues,
+              final int aBytes) {
+            keys = aKeys;
+            values = aValues;
+            bytes = aBytes;
+        }
+    }
+
+    private final LinkedHashMap<TextSizeCache, Entry> mEntries;
+
+    private long mMaxBytes;
+    private long mSizeBytes;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    RubyMeasureCache(final long aMaxBytes) {
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mMaxBytes = aMaxBytes;
+    }
+
+    public static @NonNull RubyMeasureCache getInstance() {
+        return sInstance;
+    }
+
+    static int estimateBytes(final @NonNull MeasureKey aMeasureKey,
+                             final @NonNull SuperReplacementSpan.TextSizeInformation aTextSizeInformation) {
+        return aMeasureKey.estimateBytes() + aTextSizeInformation.estimateBytes();
+    }
+
+    synchronized @Nullable SuperReplacementSpan.TextSizeInformation get(final @NonNull TextSizeCache aSlot,
+                                                                        final @NonNull Paint aPaint,
+                                                                        final @NonNull CharSequence aText,
+                                                                        final int aStart, final int aEnd) {
+        final Entry entry = mEntries.get(aSlot);
+
+        if (entry != null) {
+            for (int i = 0; i < entry.keys.length; i++) {
+                if (entry.keys[i] != null && entry.keys[i].matches(aPaint, aText, aStart, aEnd)) {
+                    final MeasureKey key = entry.keys[i];
+                    final SuperReplacementSpan.TextSizeInformation value = entry.values[i];
+
+                    System.arraycopy(entry.keys, 0, entry.keys, 1, i);
+                    System.arraycopy(entry.values, 0, entry.values, 1, i);
+
+                    entry.keys[0] = key;
+                    entry.values[0] = value;
+
+                    mHitCount++;
+
+                    return value;
+                }
+            }
+        }
+
+        mMissCount++;
+
+        return null;
+    }
+
+    synchronized void put(final @NonNull TextSizeCache aSlot,
+                          final @NonNull Paint aPaint,
+                          final @NonNull CharSequence aText,
+                          final int aStart, final int aEnd,
+                          final @NonNull SuperReplacementSpan.TextSizeInformation aTextSizeInformation) {
+        final Entry previousEntry = mEntries.remove(aSlot);
+        final MeasureKey[] keys = new MeasureKey[ENTRY_COUNT];
+        final SuperReplacementSpan.TextSizeInformation[] values = new SuperReplacementSpan.TextSizeInformation[ENTRY_COUNT];
+
+        keys[0] = MeasureKey.create(aPaint, aText, aStart, aEnd);
+        values[0] = aTextSizeInformation;
+
+        int bytes = ENTRY_BYTES + estimateBytes(keys[0], values[0]);
+
+        if (previousEntry != null) {
+            mSizeBytes -= previousEntry.bytes;
+
+            if (previousEntry.keys[0] != null) {
+                keys[1] = previousEntry.keys[0];
+                values[1] = previousEntry.values[0];
+
+                bytes += estimateBytes(keys[1], values[1]);
+            }
+        }
+
+        mEntries.put(aSlot, new Entry(keys, values, bytes));
+        mSizeBytes += bytes;
+
+        trimToSize(mMaxBytes);
+    }
+
+    private void trimToSize(final long aMaxBytes) {
+        final Iterator<Map.Entry<TextSizeCache, Entry>> entryIterator = mEntries.entrySet().iterator();
+
+        while (mSizeBytes > aMaxBytes && entryIterator.hasNext()) {
+            mSizeBytes -= entryIterator.next().getValue().bytes;
+            entryIterator.remove();
+
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized void setMaxBytes(final long aMaxBytes) {
+        mMaxBytes = aMaxBytes;
+
+        trimToSize(mMaxBytes);
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mSizeBytes = 0;
+    }
+
+    public synchronized void resetStatistics() {
+        mHitCount = 0;
+        mMissCount = 0;
+        mEvictionCount = 0;
+    }
+
+    public synchronized void onTrimMemory(final int aLevel) {
+        if (aLevel >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                aLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (aLevel >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimToSize(mMaxBytes / 4);
+        } else if (aLevel >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN ||
+                aLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        } else if (aLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trimToSize(mMaxBytes * 3 / 4);
+        }
+    }
+
+    public @NonNull ComponentCallbacks2 getComponentCallbacks() {
+        return new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(final int aLevel) {
+                RubyMeasureCache.this.onTrimMemory(aLevel);
+            }
+
+            @Override
+            public void onConfigurationChanged(final @NonNull Configuration aConfiguration) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                clear();
+            }
+        };
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.text.Spanned;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedList;
+
+// Preview of text sizes during a pinch-to-zoom gesture. The text keeps
+// being measured with the paint it had when the gesture started, whose
+// measurements are cached, and spans scale these measurements and their
+// drawing by the preview scale: a frame of the gesture only multiplies
+// the cached sizes. When the gesture ends, the text size of the paint
+// should be set to its final value, measuring the text exactly once.
+
+public class RubyScaling {
+    public interface OnScaleChangedListener {
+        void onScaleChanged(@NonNull RubyScaling aRubyScaling);
+    }
+
+    private final LinkedList<OnScaleChangedListener> mListeners;
+
+    private volatile float mPreviewScale;
+
+    public RubyScaling() {
+        mListeners = new LinkedList<>();
+        mPreviewScale = 1;
+    }
+
+    // Sets aRubyScaling on the top level SuperReplacementSpan instances
+    // of aText: nested spans are measured and drawn by their parent, at
+    // the size it is given.
+
+    public static void attach(final @NonNull Spanned aText, final @Nullable RubyScaling aRubyScaling) {
+        for (final SuperReplacementSpan span : aText.getSpans(0, aText.length(), SuperReplacementSpan.class)) {
+            if (!RubyLayoutPrefetcher.isNested(aText, span, aText.getSpanStart(span), aText.getSpanEnd(span))) {
+                span.setRubyScaling(aRubyScaling);
+            }
+        }
+    }
+
+    public float getPreviewScale() {
+        return mPreviewScale;
+    }
+
+    public boolean isPreviewing() {
+        return mPreviewScale != 1;
+    }
+
+    // Scale relative to the size of the paint text is laid out with
+    public void setPreviewScale(final float aPreviewScale) {
+        if (aPreviewScale <= 0 || mPreviewScale == aPreviewScale) {
+            return;
+        }
+
+        mPreviewScale = aPreviewScale;
+
+        for (final OnScaleChangedListener listener : new LinkedList<>(mListeners)) {
+            listener.onScaleChanged(this);
+        }
+    }
+
+    // Returns the final scale, to apply to the text size of the paint
+    public float endPreview() {
+        final float previewScale = mPreviewScale;
+
+        setPreviewScale(1);
+
+        return previewScale;
+    }
+
+    public void addOnScaleChangedListener(final @NonNull OnScaleChangedListener aListener) {
+        if (!mListeners.contains(aListener)) {
+            mListeners.add(aListener);
+        }
+    }
+
+    public void removeOnScaleChangedListener(final @NonNull OnScaleChangedListener aListener) {
+        mListeners.remove(aListener);
+    }
+}
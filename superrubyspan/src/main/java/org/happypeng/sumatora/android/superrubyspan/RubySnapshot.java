@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.style.RelativeSizeSpan;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Compact copy of spannified ruby text, to be saved across configuration
+// changes and process death: the base text, and for each top level span
+// its range, alignments, furigana and their relative size. Restoring it
+// sets new spans on the text without parsing it again.
+//
+// When created with a paint, the size of each span for that paint is
+// saved as well and the restored spans report it from getSize() until
+// they are given a paint with different metrics, so that laying the
+// restored text out does not measure it again. Other spans, and the
+// styles of furigana, are not saved.
+//
+// The whole text is written to the parcel. A saved instance state goes
+// through a binder transaction limited to about 1 MB for the whole
+// activity, so the snapshot of a long text should be kept out of the
+// bundle, such as in a ViewModel or a file, saving only a reference.
+
+public class RubySnapshot implements Parcelable {
+    private static final int PAINT_VALUE_COUNT = 5;
+    private static final int METRIC_COUNT = 6;
+
+    private final @NonNull String mText;
+    private final @NonNull int[] mStarts;
+    private final @NonNull int[] mEnds;
+    private final @NonNull int[] mAlignments;
+    private final @NonNull int[] mFuriganaAlignments;
+    private final @NonNull String[] mFurigana;
+    private final @NonNull float[] mRelativeSizes;
+    private final @Nullable SizeHint[] mSizeHints;
+
+    private RubySnapshot(final @NonNull String aText,
+                         final @NonNull int[] aStarts, final @NonNull int[] aEnds,
+                         final @NonNull int[] aAlignments, final @NonNull int[] aFuriganaAlignments,
+                         final @NonNull String[] aFurigana, final @NonNull float[] aRelativeSizes,
+                         final @Nullable SizeHint[] aSizeHints) {
+        mText = aText;
+        mStarts = aStarts;
+        mEnds = aEnds;
+        mAlignments = aAlignments;
+        mFuriganaAlignments = aFuriganaAlignments;
+        mFurigana = aFurigana;
+        mRelativeSizes = aRelativeSizes;
+        mSizeHints = aSizeHints;
+    }
+
+    public static @NonNull RubySnapshot create(final @NonNull Spanned aText) {
+        return create(aText, null);
+    }
+
+    public static @NonNull RubySnapshot create(final @NonNull Spanned aText, final @Nullable TextPaint aPaint) {
+        final SuperReplacementSpan[] spans = getTopLevelSpans(aText);
+
+        final int[] starts = new int[spans.length];
+        final int[] ends = new int[spans.length];
+        final int[] alignments = new int[spans.length];
+        final int[] furiganaAlignments = new int[spans.length];
+        final String[] furigana = new String[spans.length];
+        final float[] relativeSizes = new float[spans.length];
+        final SizeHint[] sizeHints = aPaint == null ? null : new SizeHint[spans.length];
+
+        final TextPaint workPaint = new TextPaint();
+        final Paint.FontMetricsInt fontMetricsInt = new Paint.FontMetricsInt();
+
+        for (int i = 0; i < spans.length; i++) {
+            starts[i] = aText.getSpanStart(spans[i]);
+            ends[i] = aText.getSpanEnd(spans[i]);
+            alignments[i] = spans[i].getAlignment();
+
+            boolean furiganaVisible = true;
+
+            if (spans[i] instanceof SuperRubySpan) {
+                final SuperRubySpan rubySpan = (SuperRubySpan) spans[i];
+
+                furiganaAlignments[i] = rubySpan.getFuriganaAlignment();
+                furigana[i] = rubySpan.getFurigana().toString();
+                relativeSizes[i] = getRelativeSize(rubySpan.getFurigana());
+                furiganaVisible = rubySpan.isFuriganaVisible();
+            }
+
+            if (sizeHints != null) {
+                RubyLayoutPrefetcher.updateMeasureState(aText, starts[i], ends[i], aPaint, workPaint);
+
+                final int size = spans[i].getExactSize(workPaint, aText, starts[i], ends[i], fontMetricsInt);
+
+                sizeHints[i] = SizeHint.create(workPaint, furiganaVisible, size, fontMetricsInt);
+            }
+        }
+
+        return new RubySnapshot(aText.toString(), starts, ends, alignments, furiganaAlignments,
+                furigana, relativeSizes, sizeHints);
+    }
+
+    // Spans sorted by position, without the ones nested in others
+    static @NonNull SuperReplacementSpan[] getTopLevelSpans(final @NonNull Spanned aText) {
+        final SuperReplacementSpan[] spans = aText.getSpans(0, aText.length(), SuperReplacementSpan.class);
+        int count = 0;
+
+        for (SuperReplacementSpan span : spans) {
+            if (!RubyLayoutPrefetcher.isNested(aText, span, aText.getSpanStart(span), aText.getSpanEnd(span))) {
+                spans[count++] = span;
+            }
+        }
+
+        final SuperReplacementSpan[] topLevelSpans = Arrays.copyOf(spans, count);
+
+        Arrays.sort(topLevelSpans, new Comparator<SuperReplacementSpan>() {
+            @Override
+            public int compare(final SuperReplacementSpan aFirst, final SuperReplacementSpan aSecond) {
+                return aText.getSpanStart(aFirst) - aText.getSpanStart(aSecond);
+            }
+        });
+
+        return topLevelSpans;
+    }
+
+    // 0 when the furigana have no relative size over their whole length
+    private static float getRelativeSize(final @NonNull CharSequence aFurigana) {
+        if (aFurigana instanceof Spanned) {
+            final Spanned spanned = (Spanned) aFurigana;
+
+            for (RelativeSizeSpan relativeSizeSpan : spanned.getSpans(0, spanned.length(), RelativeSizeSpan.class)) {
+                if (spanned.getSpanStart(relativeSizeSpan) == 0 &&
+                        spanned.getSpanEnd(relativeSizeSpan) == spanned.length()) {
+                    return relativeSizeSpan.getSizeChange();
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    public @NonNull Spannable restore() {
+        return restore(null);
+    }
+
+    public @NonNull Spannable restore(final @Nullable RubyVisibility aRubyVisibility) {
+        final SpannableString text = new SpannableString(mText);
+
+        for (int i = 0; i < mStarts.length; i++) {
+            final SuperReplacementSpan span;
+
+            if (mFurigana[i] != null) {
+                final SpannableString furigana = new SpannableString(mFurigana[i]);
+
+                if (mRelativeSizes[i] != 0) {
+                    furigana.setSpan(new RelativeSizeSpan(mRelativeSizes[i]), 0, furigana.length(),
+                            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+
+                span = new SuperRubySpan(furigana, mAlignments[i], mFuriganaAlignments[i], aRubyVisibility);
+            } else {
+                span = new SuperReplacementSpan(mAlignments[i]);
+            }
+
+            if (mSizeHints != null) {
+                span.setSizeHint(mSizeHints[i]);
+            }
+
+            text.setSpan(span, mStarts[i], mEnds[i], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        return text;
+    }
+
+    public int getSpanCount() {
+        return mStarts.length;
+    }
+
+    public boolean hasMeasurements() {
+        return mSizeHints != null;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(final @NonNull Parcel aParcel, final int aFlags) {
+        aParcel.writeString(mText);
+        aParcel.writeIntArray(mStarts);
+        aParcel.writeIntArray(mEnds);
+        aParcel.writeIntArray(mAlignments);
+        aParcel.writeIntArray(mFuriganaAlignments);
+        aParcel.writeStringArray(mFurigana);
+        aParcel.writeFloatArray(mRelativeSizes);
+
+        if (mSizeHints == null) {
+            aParcel.writeByte((byte) 0);
+
+            return;
+        }
+
+        final int count = mSizeHints.length;
+
+        final float[] paintValues = new float[PAINT_VALUE_COUNT * count];
+        final int[] paintFlags = new int[3 * count];
+        final int[] metrics = new int[METRIC_COUNT * count];
+
+        for (int i = 0; i < count; i++) {
+            final SizeHint sizeHint = mSizeHints[i];
+
+            paintValues[PAINT_VALUE_COUNT * i] = sizeHint.textSize;
+            paintValues[PAINT_VALUE_COUNT * i + 1] = sizeHint.textScaleX;
+            paintValues[PAINT_VALUE_COUNT * i + 2] = sizeHint.textSkewX;
+            paintValues[PAINT_VALUE_COUNT * i + 3] = sizeHint.letterSpacing;
+            paintValues[PAINT_VALUE_COUNT * i + 4] = sizeHint.typefaceWidth;
+
+            paintFlags[3 * i] = sizeHint.flags;
+            paintFlags[3 * i + 1] = sizeHint.typefaceStyle;
+            paintFlags[3 * i + 2] = sizeHint.furiganaVisible ? 1 : 0;
+
+            metrics[METRIC_COUNT * i] = sizeHint.size;
+            metrics[METRIC_COUNT * i + 1] = sizeHint.ascent;
+            metrics[METRIC_COUNT * i + 2] = sizeHint.top;
+            metrics[METRIC_COUNT * i + 3] = sizeHint.descent;
+            metrics[METRIC_COUNT * i + 4] = sizeHint.bottom;
+            metrics[METRIC_COUNT * i + 5] = sizeHint.leading;
+        }
+
+        aParcel.writeByte((byte) 1);
+        aParcel.writeFloatArray(paintValues);
+        aParcel.writeIntArray(paintFlags);
+        aParcel.writeIntArray(metrics);
+    }
+
+    private static @NonNull RubySnapshot readFromParcel(final @NonNull Parcel aParcel) {
+        final String text = aParcel.readString();
+        final int[] starts = aParcel.createIntArray();
+        final int[] ends = aParcel.createIntArray();
+        final int[] alignments = aParcel.createIntArray();
+        final int[] furiganaAlignments = aParcel.createIntArray();
+        final String[] furigana = aParcel.createStringArray();
+        final float[] relativeSizes = aParcel.createFloatArray();
+
+        SizeHint[] sizeHints = null;
+
+        if (aParcel.readByte() != 0) {
+            final float[] paintValues = aParcel.createFloatArray();
+            final int[] paintFlags = aParcel.createIntArray();
+            final int[] metrics = aParcel.createIntArray();
+
+            sizeHints = new SizeHint[starts.length];
+
+            for (int i = 0; i < sizeHints.length; i++) {
+                sizeHints[i] = new SizeHint(paintValues[PAINT_VALUE_COUNT * i], paintValues[PAINT_VALUE_COUNT * i + 1],
+                        paintValues[PAINT_VALUE_COUNT * i + 2], paintValues[PAINT_VALUE_COUNT * i + 3],
+                        paintFlags[3 * i], paintFlags[3 * i + 1], paintValues[PAINT_VALUE_COUNT * i + 4],
+                        paintFlags[3 * i + 2] != 0,
+                        metrics[METRIC_COUNT * i], metrics[METRIC_COUNT * i + 1],
+                        metrics[METRIC_COUNT * i + 2], metrics[METRIC_COUNT * i + 3],
+                        metrics[METRIC_COUNT * i + 4], metrics[METRIC_COUNT * i + 5]);
+            }
+        }
+
+        return new RubySnapshot(text, starts, ends, alignments, furiganaAlignments,
+                furigana, relativeSizes, sizeHints);
+    }
+
+    public static final Creator<RubySnapshot> CREATOR = new Creator<RubySnapshot>() {
+        @Override
+        public RubySnapshot createFromParcel(final Parcel aParcel) {
+            return readFromParcel(aParcel);
+        }
+
+        @Override
+        public RubySnapshot[] newArray(final int aSize) {
+            return new RubySnapshot[aSize];
+        }
+    };
+}
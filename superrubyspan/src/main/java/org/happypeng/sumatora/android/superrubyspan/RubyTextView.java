@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+// Displays ruby annotated text laid out by a RubyLayout. The text is
+// expected to carry SuperRubySpan instances directly on the base text,
+// such as produced by JapaneseText.convertWithFurigana() when text is
+// not spannified, see FuriganaOptions.setSpannifyText().
+
+public class RubyTextView extends View implements RubyVisibility.OnVisibilityChangedListener,
+        RubyHighlighter.OnHighlightChangedListener, RubyScaling.OnScaleChangedListener {
+    private static final float DEFAULT_TEXT_SIZE_SP = 16;
+
+    private final TextPaint mTextPaint;
+
+    private @Nullable RubyVisibility mRubyVisibility;
+    private @Nullable RubyHighlighter mRubyHighlighter;
+    private @Nullable RubyScaling mRubyScaling;
+
+    private @NonNull CharSequence mText;
+    private @Nullable RubyLayout mLayout;
+    private boolean mLayoutFuriganaVisible;
+
+    private boolean mAttached;
+
+    public RubyTextView(final @NonNull Context aContext) {
+        this(aContext, null);
+    }
+
+    public RubyTextView(final @NonNull Context aContext, final @Nullable AttributeSet aAttributeSet) {
+        this(aContext, aAttributeSet, 0);
+    }
+
+    public RubyTextView(final @NonNull Context aContext, final @Nullable AttributeSet aAttributeSet,
+                        final int aDefStyleAttr) {
+        super(aContext, aAttributeSet, aDefStyleAttr);
+
+        mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        mTextPaint.density = aContext.getResources().getDisplayMetrics().density;
+        mTextPaint.setColor(Color.BLACK);
+        mTextPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP,
+                DEFAULT_TEXT_SIZE_SP, aContext.getResources().getDisplayMetrics()));
+
+        mText = "";
+        mLayout = null;
+        mLayoutFuriganaVisible = true;
+
+        mAttached = false;
+    }
+
+    // Listeners are only registered while attached to a window, so that
+    // shared RubyVisibility, RubyHighlighter and RubyScaling instances
+    // do not keep detached views alive.
+
+    private void addListeners() {
+        if (mRubyVisibility != null) {
+            mRubyVisibility.addOnVisibilityChangedListener(this);
+        }
+
+        if (mRubyHighlighter != null) {
+            mRubyHighlighter.addOnHighlightChangedListener(this);
+        }
+
+        if (mRubyScaling != null) {
+            mRubyScaling.addOnScaleChangedListener(this);
+        }
+    }
+
+    private void removeListeners() {
+        if (mRubyVisibility != null) {
+            mRubyVisibility.removeOnVisibilityChangedListener(this);
+        }
+
+        if (mRubyHighlighter != null) {
+            mRubyHighlighter.removeOnHighlightChangedListener(this);
+        }
+
+        if (mRubyScaling != null) {
+            mRubyScaling.removeOnScaleChangedListener(this);
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        mAttached = true;
+        addListeners();
+
+        // Changes missed while detached
+        if (mRubyVisibility != null && mLayout != null &&
+                mRubyVisibility.isFuriganaVisible() != mLayoutFuriganaVisible) {
+            invalidateLayout();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeListeners();
+        mAttached = false;
+
+        super.onDetachedFromWindow();
+    }
+
+    public void setText(final @NonNull CharSequence aText) {
+        mText = aText;
+
+        if (mRubyHighlighter != null && mText instanceof Spanned) {
+            RubyHighlighter.attach((Spanned) mText, mRubyHighlighter);
+        }
+
+        invalidateLayout();
+    }
+
+    public @NonNull CharSequence getText() {
+        return mText;
+    }
+
+    public void setTextSize(final int aUnit, final float aSize) {
+        mTextPaint.setTextSize(TypedValue.applyDimension(aUnit, aSize,
+                getResources().getDisplayMetrics()));
+
+        invalidateLayout();
+    }
+
+    public void setTextSize(final float aSize) {
+        setTextSize(TypedValue.COMPLEX_UNIT_SP, aSize);
+    }
+
+    public float getTextSize() {
+        return mTextPaint.getTextSize();
+    }
+
+    public void setTextColor(final int aColor) {
+        mTextPaint.setColor(aColor);
+
+        if (mLayout != null) {
+            mLayout.setTextColor(aColor);
+        }
+
+        invalidate();
+    }
+
+    public void setTypeface(final @Nullable Typeface aTypeface) {
+        mTextPaint.setTypeface(aTypeface);
+
+        invalidateLayout();
+    }
+
+    // The paint is shared with the layout: call invalidateLayout()
+    // after modifying it.
+
+    public @NonNull TextPaint getPaint() {
+        return mTextPaint;
+    }
+
+    public @Nullable RubyLayout getLayout() {
+        return mLayout;
+    }
+
+    // Lays the text out again each time aRubyVisibility changes, which
+    // should be the one its SuperRubySpan instances were created with.
+
+    public void setRubyVisibility(final @Nullable RubyVisibility aRubyVisibility) {
+        if (mAttached) {
+            removeListeners();
+        }
+
+        mRubyVisibility = aRubyVisibility;
+
+        if (mAttached) {
+            addListeners();
+        }
+
+        invalidateLayout();
+    }
+
+    public @Nullable RubyVisibility getRubyVisibility() {
+        return mRubyVisibility;
+    }
+
+    @Override
+    public void onVisibilityChanged(final @NonNull RubyVisibility aRubyVisibility) {
+        invalidateLayout();
+    }
+
+    // Attaches aRubyHighlighter to the text, each highlight change
+    // then only redraws the current layout.
+
+    public void setRubyHighlighter(final @Nullable RubyHighlighter aRubyHighlighter) {
+        if (mAttached) {
+            removeListeners();
+        }
+
+        mRubyHighlighter = aRubyHighlighter;
+
+        if (mAttached) {
+            addListeners();
+        }
+
+        if (mText instanceof Spanned) {
+            RubyHighlighter.attach((Spanned) mText, mRubyHighlighter);
+        }
+
+        invalidate();
+    }
+
+    public @Nullable RubyHighlighter getRubyHighlighter() {
+        return mRubyHighlighter;
+    }
+
+    @Override
+    public void onHighlightChanged(final @NonNull RubyHighlighter aRubyHighlighter) {
+        invalidate();
+    }
+
+    // While aRubyScaling previews a scale, the current layout is drawn
+    // scaled without being laid out again, lines being wrapped for the
+    // new size once the preview ends. It is not attached to the spans.
+
+    public void setRubyScaling(final @Nullable RubyScaling aRubyScaling) {
+        if (mAttached) {
+            removeListeners();
+        }
+
+        mRubyScaling = aRubyScaling;
+
+        if (mAttached) {
+            addListeners();
+        }
+
+        requestLayout();
+        invalidate();
+    }
+
+    public @Nullable RubyScaling getRubyScaling() {
+        return mRubyScaling;
+    }
+
+    private float getPreviewScale() {
+        return mRubyScaling == null ? 1 : mRubyScaling.getPreviewScale();
+    }
+
+    @Override
+    public void onScaleChanged(final @NonNull RubyScaling aRubyScaling) {
+        requestLayout();
+        invalidate();
+    }
+
+    public void invalidateLayout() {
+        mLayout = null;
+
+        requestLayout();
+        invalidate();
+    }
+
+    // The current layout is kept for any width breaking the same lines,
+    // such as the width of its longest line after a wrap_content measure
+
+    private @NonNull RubyLayout getLayout(final int aWidth) {
+        if (mLayout == null || !mLayout.breaksLinesAt(aWidth)) {
+            mLayout = new RubyLayout(mText, mTextPaint, aWidth);
+            mLayoutFuriganaVisible = mRubyVisibility == null || mRubyVisibility.isFuriganaVisible();
+        }
+
+        return mLayout;
+    }
+
+    @Override
+    protected void onMeasure(final int aWidthMeasureSpec, final int aHeightMeasureSpec) {
+        final int widthMode = MeasureSpec.getMode(aWidthMeasureSpec);
+        final int horizontalPadding = getPaddingLeft() + getPaddingRight();
+        final int verticalPadding = getPaddingTop() + getPaddingBottom();
+        final int availableWidth = widthMode == MeasureSpec.UNSPECIFIED ? Integer.MAX_VALUE :
+                Math.max(0, MeasureSpec.getSize(aWidthMeasureSpec) - horizontalPadding);
+
+        final float previewScale = getPreviewScale();
+        final RubyLayout layout = previewScale != 1 && mLayout != null ? mLayout : getLayout(availableWidth);
+
+        final int width = widthMode == MeasureSpec.EXACTLY ? MeasureSpec.getSize(aWidthMeasureSpec) :
+                (int) Math.ceil(layout.getMaxLineWidth() * previewScale) + horizontalPadding;
+
+        setMeasuredDimension(resolveSize(width, aWidthMeasureSpec),
+                resolveSize(Math.round(layout.getHeight() * previewScale) + verticalPadding, aHeightMeasureSpec));
+    }
+
+    // Draws the layout of the last measure: text is never laid out here,
+    // a pending layout pass measuring it again when it was invalidated
+
+    @Override
+    protected void onDraw(final @NonNull Canvas aCanvas) {
+        if (mLayout == null) {
+            return;
+        }
+
+        final float previewScale = getPreviewScale();
+        final int saveCount = aCanvas.save();
+
+        aCanvas.translate(getPaddingLeft(), getPaddingTop());
+        aCanvas.scale(previewScale, previewScale);
+        mLayout.draw(aCanvas);
+        aCanvas.restoreToCount(saveCount);
+    }
+}
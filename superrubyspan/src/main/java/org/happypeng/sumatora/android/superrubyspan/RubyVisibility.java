@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import androidx.annotation.NonNull;
+
+import java.util.LinkedList;
+
+// Shared furigana visibility, consulted by the SuperRubySpan instances
+// created with it at each measure and draw. Toggling it does not modify
+// the spans: base measurements stay cached, only a relayout of the
+// text is needed, which listeners are expected to trigger.
+
+public class RubyVisibility {
+    public interface OnVisibilityChangedListener {
+        void onVisibilityChanged(@NonNull RubyVisibility aRubyVisibility);
+    }
+
+    private final LinkedList<OnVisibilityChangedListener> mListeners;
+
+    private volatile boolean mFuriganaVisible;
+
+    public RubyVisibility() {
+        this(true);
+    }
+
+    public RubyVisibility(final boolean aFuriganaVisible) {
+        mListeners = new LinkedList<>();
+        mFuriganaVisible = aFuriganaVisible;
+    }
+
+    public boolean isFuriganaVisible() {
+        return mFuriganaVisible;
+    }
+
+    public void setFuriganaVisible(final boolean aFuriganaVisible) {
+        if (mFuriganaVisible == aFuriganaVisible) {
+            return;
+        }
+
+        mFuriganaVisible = aFuriganaVisible;
+
+        for (final OnVisibilityChangedListener listener : new LinkedList<>(mListeners)) {
+            listener.onVisibilityChanged(this);
+        }
+    }
+
+    public void toggleFuriganaVisible() {
+        setFuriganaVisible(!mFuriganaVisible);
+    }
+
+    public void addOnVisibilityChangedListener(final @NonNull OnVisibilityChangedListener aListener) {
+        if (!mListeners.contains(aListener)) {
+            mListeners.add(aListener);
+        }
+    }
+
+    public void removeOnVisibilityChangedListener(final @NonNull OnVisibilityChangedListener aListener) {
+        mListeners.remove(aListener);
+    }
+}
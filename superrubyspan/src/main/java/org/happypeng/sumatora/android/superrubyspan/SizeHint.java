@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.WeakHashMap;
+
+// Size of a span measured earlier, possibly by another process, used by
+// getSize() instead of measuring as long as the paint it is given has
+// the same text metrics. Unlike MeasureKey, the paint is described only
+// by values that can be saved: the typeface by its style, and by the
+// width of a probe text drawn with it, which tells font families apart
+// across processes.
+
+class SizeHint {
+    private static final String PROBE_TEXT = "Mmi漢字かなカナ";
+    private static final float PROBE_TEXT_SIZE = 100;
+
+    private static final WeakHashMap<Typeface, Float> sProbeWidths = new WeakHashMap<>();
+
+    final float textSize;
+    final float textScaleX;
+    final float textSkewX;
+    final float letterSpacing;
+    final int flags;
+    final int typefaceStyle;
+    final float typefaceWidth;
+    final boolean furiganaVisible;
+
+    final int size;
+    final int ascent;
+    final int top;
+    final int descent;
+    final int bottom;
+    final int leading;
+
+    SizeHint(final float aTextSize, final float aTextScaleX, final float aTextSkewX,
+             final float aLetterSpacing, final int aFlags, final int aTypefaceStyle,
+             final float aTypefaceWidth, final boolean aFuriganaVisible,
+             final int aSize, final int aAscent, final int aTop,
+             final int aDescent, final int aBottom, final int aLeading) {
+        textSize = aTextSize;
+        textScaleX = aTextScaleX;
+        textSkewX = aTextSkewX;
+        letterSpacing = aLetterSpacing;
+        flags = aFlags;
+        typefaceStyle = aTypefaceStyle;
+        typefaceWidth = aTypefaceWidth;
+        furiganaVisible = aFuriganaVisible;
+
+        size = aSize;
+        ascent = aAscent;
+        top = aTop;
+        descent = aDescent;
+        bottom = aBottom;
+        leading = aLeading;
+    }
+
+    static @NonNull SizeHint create(final @NonNull Paint aPaint, final boolean aFuriganaVisible,
+                                    final int aSize, final @NonNull Paint.FontMetricsInt aFontMetricsInt) {
+        return new SizeHint(aPaint.getTextSize(), aPaint.getTextScaleX(), aPaint.getTextSkewX(),
+                getLetterSpacing(aPaint), aPaint.getFlags(), getTypefaceStyle(aPaint),
+                getTypefaceWidth(aPaint), aFuriganaVisible,
+                aSize, aFontMetricsInt.ascent, aFontMetricsInt.top,
+                aFontMetricsInt.descent, aFontMetricsInt.bottom, aFontMetricsInt.leading);
+    }
+
+    static float getLetterSpacing(final @NonNull Paint aPaint) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return aPaint.getLetterSpacing();
+        }
+
+        return 0;
+    }
+
+    static int getTypefaceStyle(final @NonNull Paint aPaint) {
+        final Typeface typeface = aPaint.getTypeface();
+
+        return typeface == null ? Typeface.NORMAL : typeface.getStyle();
+    }
+
+    // Measured once per typeface, the default one being null
+    static float getTypefaceWidth(final @NonNull Paint aPaint) {
+        final Typeface typeface = aPaint.getTypeface();
+
+        synchronized (sProbeWidths) {
+            Float probeWidth = sProbeWidths.get(typeface);
+
+            if (probeWidth == null) {
+                final Paint probePaint = new Paint();
+
+                probePaint.setTypeface(typeface);
+                probePaint.setTextSize(PROBE_TEXT_SIZE);
+
+                probeWidth = probePaint.measureText(PROBE_TEXT);
+                sProbeWidths.put(typeface, probeWidth);
+            }
+
+            return probeWidth;
+        }
+    }
+
+    boolean matches(final @NonNull Paint aPaint, final boolean aFuriganaVisible) {
+        return furiganaVisible == aFuriganaVisible &&
+                textSize == aPaint.getTextSize() &&
+                textScaleX == aPaint.getTextScaleX() &&
+                textSkewX == aPaint.getTextSkewX() &&
+                letterSpacing == getLetterSpacing(aPaint) &&
+                flags == aPaint.getFlags() &&
+                typefaceStyle == getTypefaceStyle(aPaint) &&
+                typefaceWidth == getTypefaceWidth(aPaint);
+    }
+
+    int apply(final @Nullable Paint.FontMetricsInt aFontMetricsInt) {
+        if (aFontMetricsInt != null) {
+            aFontMetricsInt.ascent = ascent;
+            aFontMetricsInt.top = top;
+            aFontMetricsInt.descent = descent;
+            aFontMetricsInt.bottom = bottom;
+            aFontMetricsInt.leading = leading;
+        }
+
+        return size;
+    }
+}
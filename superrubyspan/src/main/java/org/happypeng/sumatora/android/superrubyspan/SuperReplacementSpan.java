@@ -18,6 +18,7 @@ package org.happypeng.sumatora.android.superrubyspan;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.text.Spanned;
 import android.text.TextPaint;
 import android.text.style.CharacterStyle;
@@ -28,8 +29,11 @@ import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -50,13 +54,149 @@ public class SuperReplacementSpan extends ReplacementSpan {
         final Paint.FontMetricsInt fontMetricsInt;
         final float size;
         final List<CharSequenceSizedElement> charSequenceSizedElements;
+        final List<TextPaint> textPaints;
 
         TextSizeInformation(final Paint.FontMetricsInt aFontMetricsInt,
                             final float aSize,
-                            final List<CharSequenceSizedElement> aCharSequenceSizedElements) {
+                            final List<CharSequenceSizedElement> aCharSequenceSizedElements,
+                            final List<TextPaint> aTextPaints) {
             fontMetricsInt = aFontMetricsInt;
             size = aSize;
             charSequenceSizedElements = aCharSequenceSizedElements;
+            textPaints = aTextPaints;
+        }
+
+        // Approximate heap retained by this measurement, for the
+        // byte budget of RubyMeasureCache
+
+        int estimateBytes() {
+            // This object, its font metrics and its lists, then a TextPaint
+            // and its font metrics for each style
+            int bytes = 160 + 288 * textPaints.size();
+
+            for (CharSequenceSizedElement charSequenceSizedElement : charSequenceSizedElements) {
+                final CharSequenceElement charSequenceElement = charSequenceSizedElement.charSequenceElement;
+
+                // Both element objects and their list node
+                bytes += 96;
+
+                if (charSequenceElement.replacementSpans != null) {
+                    // Font metrics returned by the replacement span, and its list
+                    bytes += 32 + 32 + 24 * charSequenceElement.replacementSpans.size();
+                }
+
+                if (charSequenceElement.metricAffectingSpans != null) {
+                    bytes += 32 + 24 * charSequenceElement.metricAffectingSpans.size();
+                }
+
+                if (charSequenceElement.characterStyles != null) {
+                    bytes += 32 + 24 * charSequenceElement.characterStyles.size();
+                }
+            }
+
+            return bytes;
+        }
+    }
+
+    static class StyleKey {
+        final List<MetricAffectingSpan> metricAffectingSpans;
+        final List<CharacterStyle> characterStyles;
+
+        StyleKey(final List<MetricAffectingSpan> aMetricAffectingSpans,
+                 final List<CharacterStyle> aCharacterStyles) {
+            metricAffectingSpans = aMetricAffectingSpans;
+            characterStyles = aCharacterStyles;
+        }
+
+        @Override
+        public boolean equals(final Object aObject) {
+            if (!(aObject instanceof StyleKey)) {
+                return false;
+            }
+
+            final StyleKey styleKey = (StyleKey) aObject;
+
+            return (metricAffectingSpans == null ? styleKey.metricAffectingSpans == null :
+                    metricAffectingSpans.equals(styleKey.metricAffectingSpans)) &&
+                    (characterStyles == null ? styleKey.characterStyles == null :
+                            characterStyles.equals(styleKey.characterStyles));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (metricAffectingSpans == null ? 0 : metricAffectingSpans.hashCode()) +
+                    (characterStyles == null ? 0 : characterStyles.hashCode());
+        }
+    }
+
+    // Elements styled by the same ordered set of spans share a single
+    // fully configured TextPaint, so that a measurement allocates one
+    // paint per distinct style instead of one per element.
+
+    static class StyleTable {
+        private final Paint mPaint;
+        private final HashMap<StyleKey, Integer> mStyleIndexes;
+        private final List<StyleKey> mStyleKeys;
+
+        final List<TextPaint> textPaints;
+        final List<Paint.FontMetricsInt> fontMetricsInts;
+
+        StyleTable(final @NonNull Paint aPaint) {
+            mPaint = aPaint;
+            mStyleIndexes = new HashMap<>();
+            mStyleKeys = new ArrayList<>();
+
+            textPaints = new ArrayList<>();
+            fontMetricsInts = new ArrayList<>();
+        }
+
+        int getStyleIndex(final @Nullable List<MetricAffectingSpan> aMetricAffectingSpans,
+                          final @Nullable List<CharacterStyle> aCharacterStyles) {
+            final StyleKey styleKey = new StyleKey(aMetricAffectingSpans, aCharacterStyles);
+            final Integer styleIndex = mStyleIndexes.get(styleKey);
+
+            if (styleIndex != null) {
+                return styleIndex;
+            }
+
+            final TextPaint textPaint = new TextPaint(mPaint);
+
+            if (aMetricAffectingSpans != null) {
+                for (MetricAffectingSpan metricAffectingSpan : aMetricAffectingSpans) {
+                    metricAffectingSpan.updateMeasureState(textPaint);
+                }
+            }
+
+            if (aCharacterStyles != null) {
+                for (CharacterStyle characterStyle : aCharacterStyles) {
+                    characterStyle.updateDrawState(textPaint);
+                }
+            }
+
+            textPaints.add(textPaint);
+            fontMetricsInts.add(textPaint.getFontMetricsInt());
+            mStyleIndexes.put(styleKey, textPaints.size() - 1);
+            mStyleKeys.add(styleKey);
+
+            return textPaints.size() - 1;
+        }
+
+        // Gives every paint aColor, character styles then being applied
+        // again so that colors set by spans are kept
+
+        void setColor(final int aColor) {
+            for (int i = 0; i < textPaints.size(); i++) {
+                final TextPaint textPaint = textPaints.get(i);
+                final List<CharacterStyle> characterStyles = mStyleKeys.get(i).characterStyles;
+
+                textPaint.setColor(aColor);
+
+                if (characterStyles != null) {
+                    for (CharacterStyle characterStyle : characterStyles) {
+                        characterStyle.updateDrawState(textPaint);
+                    }
+                }
+            }
         }
     }
 
@@ -83,6 +223,7 @@ public class SuperReplacementSpan extends ReplacementSpan {
     static class CharSequenceSizedElement {
         final CharSequenceElement charSequenceElement;
         final float size;
+        final int styleIndex;
         final TextPaint textPaint;
         final Paint.FontMetricsInt fontMetricsInt;
 
@@ -91,10 +232,12 @@ public class SuperReplacementSpan extends ReplacementSpan {
 
         CharSequenceSizedElement(final CharSequenceElement aCharSequenceElement,
                                          final float aSize,
+                                         final int aStyleIndex,
                                          final TextPaint aTextPaint,
                                          final Paint.FontMetricsInt aFontMetricsInt) {
             charSequenceElement = aCharSequenceElement;
             size = aSize;
+            styleIndex = aStyleIndex;
             textPaint = aTextPaint;
             fontMetricsInt = aFontMetricsInt;
 
@@ -321,6 +464,7 @@ public class SuperReplacementSpan extends ReplacementSpan {
         final List<CharSequenceElement> charSequenceElements = getCharSequenceElements(text, start, end);
         final Paint.FontMetricsInt fm = new Paint.FontMetricsInt();
         final LinkedList<CharSequenceSizedElement> charSequenceSizedElements = new LinkedList<>();
+        final StyleTable styleTable = new StyleTable(paint);
 
         int size = 0;
 
@@ -328,77 +472,128 @@ public class SuperReplacementSpan extends ReplacementSpan {
             if (charSequenceElement.replacementSpans != null) {
                 final ReplacementSpan replacementSpan = charSequenceElement.replacementSpans.get(charSequenceElement.replacementSpans.size() - 1);
                 final Paint.FontMetricsInt fontMetricsInt = new Paint.FontMetricsInt();
-                final float elementSize = replacementSpan.getSize(paint, text, charSequenceElement.start, charSequenceElement.end, fontMetricsInt);
+                // Nested spans are measured unscaled, the preview scale
+                // only applying to the top level span
+                final float elementSize = replacementSpan instanceof SuperReplacementSpan ?
+                        ((SuperReplacementSpan) replacementSpan).getExactSize(paint, text,
+                                charSequenceElement.start, charSequenceElement.end, fontMetricsInt) :
+                        replacementSpan.getSize(paint, text, charSequenceElement.start, charSequenceElement.end, fontMetricsInt);
+                final int styleIndex = styleTable.getStyleIndex(null, null);
 
                 charSequenceSizedElements.add(new CharSequenceSizedElement(charSequenceElement,
-                        elementSize, new TextPaint(paint), fontMetricsInt));
+                        elementSize, styleIndex, styleTable.textPaints.get(styleIndex), fontMetricsInt));
 
                 size += elementSize;
                 mergeFontMetricsInt(fm, fontMetricsInt);
             } else {
-                final TextPaint textPaint = new TextPaint(paint);
-
-                if (charSequenceElement.metricAffectingSpans != null) {
-                    for (MetricAffectingSpan metricAffectingSpan : charSequenceElement.metricAffectingSpans) {
-                        metricAffectingSpan.updateMeasureState(textPaint);
-                    }
-                }
-
-                if (charSequenceElement.characterStyles != null) {
-                    for (CharacterStyle characterStyle : charSequenceElement.characterStyles) {
-                        characterStyle.updateDrawState(textPaint);
-                    }
-                }
-
-                final Paint.FontMetricsInt fontMetricsInt = textPaint.getFontMetricsInt();
+                final int styleIndex = styleTable.getStyleIndex(charSequenceElement.metricAffectingSpans,
+                        charSequenceElement.characterStyles);
+                final TextPaint textPaint = styleTable.textPaints.get(styleIndex);
+                final Paint.FontMetricsInt fontMetricsInt = styleTable.fontMetricsInts.get(styleIndex);
                 final float elementSize = textPaint.measureText(text, charSequenceElement.start, charSequenceElement.end);
 
                 charSequenceSizedElements.add(new CharSequenceSizedElement(charSequenceElement,
-                        elementSize, textPaint, fontMetricsInt));
+                        elementSize, styleIndex, textPaint, fontMetricsInt));
 
                 size += elementSize;
                 mergeFontMetricsInt(fm, fontMetricsInt);
             }
         }
 
-        return new TextSizeInformation(fm, size, charSequenceSizedElements);
+        return new TextSizeInformation(fm, size, charSequenceSizedElements, styleTable.textPaints);
     }
 
-    private static void drawBackground(final @NonNull CharSequenceSizedElement aCharSequenceSizedElement,
-                                       final @NonNull Canvas aCanvas,
-                                       final float aX,
-                                       final int aY,
-                                       final boolean aFirstChar,
-                                       final boolean aLastChar) {
-        if(aCharSequenceSizedElement.textPaint.bgColor != 0) {
-            final float left = aFirstChar ? aX + aCharSequenceSizedElement.spaceBefore : aX;
-            final float right = aLastChar ?
-                    aX + aCharSequenceSizedElement.spaceBefore + aCharSequenceSizedElement.size :
-                    aX + aCharSequenceSizedElement.spaceBefore + aCharSequenceSizedElement.size +
-                            aCharSequenceSizedElement.spaceAfter;
+    private static void drawBackgroundRun(final @NonNull CharSequenceSizedElement aCharSequenceSizedElement,
+                                          final @NonNull Canvas aCanvas,
+                                          final float aLeft,
+                                          final float aRight,
+                                          final int aTop,
+                                          final int aBottom) {
+        final int previousColor = aCharSequenceSizedElement.textPaint.getColor();
+        final Paint.Style previousStyle = aCharSequenceSizedElement.textPaint.getStyle();
+
+        aCharSequenceSizedElement.textPaint.setColor(aCharSequenceSizedElement.textPaint.bgColor);
+        aCharSequenceSizedElement.textPaint.setStyle(Paint.Style.FILL);
+        aCanvas.drawRect(aLeft, aTop, aRight, aBottom, aCharSequenceSizedElement.textPaint);
+        aCharSequenceSizedElement.textPaint.setStyle(previousStyle);
+        aCharSequenceSizedElement.textPaint.setColor(previousColor);
+    }
+
+    // Contiguous elements sharing the same background color are merged
+    // into a single rectangle, so that a BackgroundColorSpan covering
+    // a whole span results in one drawRect call instead of one per element.
+
+    static void drawBackgrounds(final @NonNull TextSizeInformation aTextSizeInformation,
+                                final @NonNull Canvas aCanvas,
+                                final float aStartX,
+                                final int aY,
+                                final float aClipLeft,
+                                final float aClipRight) {
+        final int lastIndex = aTextSizeInformation.charSequenceSizedElements.size() - 1;
+
+        CharSequenceSizedElement runElement = null;
+        float runLeft = 0;
+        float runRight = 0;
+        int runTop = 0;
+        int runBottom = 0;
+
+        float cursor = aStartX;
+        int count = 0;
+
+        for (CharSequenceSizedElement charSequenceSizedElement : aTextSizeInformation.charSequenceSizedElements) {
+            // Elements are laid out from left to right
+            if (cursor > aClipRight) {
+                break;
+            }
+
+            final int bgColor = charSequenceSizedElement.textPaint.bgColor;
+
+            if (runElement != null && runElement.textPaint.bgColor != bgColor) {
+                if (runRight >= aClipLeft) {
+                    drawBackgroundRun(runElement, aCanvas, runLeft, runRight, aY + runTop, aY + runBottom);
+                }
+
+                runElement = null;
+            }
+
+            if (bgColor != 0) {
+                final float left = cursor == 0 ? cursor + charSequenceSizedElement.spaceBefore : cursor;
+                final float right = count == lastIndex ?
+                        cursor + charSequenceSizedElement.spaceBefore + charSequenceSizedElement.size :
+                        cursor + charSequenceSizedElement.spaceBefore + charSequenceSizedElement.size +
+                                charSequenceSizedElement.spaceAfter;
+
+                if (runElement == null) {
+                    runElement = charSequenceSizedElement;
+                    runLeft = left;
+                    runTop = charSequenceSizedElement.fontMetricsInt.top;
+                    runBottom = charSequenceSizedElement.fontMetricsInt.bottom;
+                } else {
+                    runTop = Math.min(runTop, charSequenceSizedElement.fontMetricsInt.top);
+                    runBottom = Math.max(runBottom, charSequenceSizedElement.fontMetricsInt.bottom);
+                }
+
+                runRight = right;
+            }
+
+            cursor += charSequenceSizedElement.spaceBefore + charSequenceSizedElement.size + charSequenceSizedElement.spaceAfter;
+            count++;
+        }
 
-            int previousColor = aCharSequenceSizedElement.textPaint.getColor();
-            Paint.Style previousStyle = aCharSequenceSizedElement.textPaint.getStyle();
-            aCharSequenceSizedElement.textPaint.setColor(aCharSequenceSizedElement.textPaint.bgColor);
-            aCharSequenceSizedElement.textPaint.setStyle(Paint.Style.FILL);
-            aCanvas.drawRect(left,
-                    aY + aCharSequenceSizedElement.fontMetricsInt.top,
-                    right,
-                    aY + aCharSequenceSizedElement.fontMetricsInt.bottom, aCharSequenceSizedElement.textPaint);
-            aCharSequenceSizedElement.textPaint.setStyle(previousStyle);
-            aCharSequenceSizedElement.textPaint.setColor(previousColor);
+        if (runElement != null && runRight >= aClipLeft) {
+            drawBackgroundRun(runElement, aCanvas, runLeft, runRight, aY + runTop, aY + runBottom);
         }
     }
 
-    static void drawText(final @NonNull CharSequence aText,
-                                 final @NonNull TextSizeInformation aTextSizeInformation,
-                                 final @Alignment int aAlignment,
-                                 final @NonNull Canvas aCanvas,
-                                 final float aSpanSize,
-                                 final float aStartX,
-                                 final int aY,
-                                 final int aTop,
-                                 final int aBottom) {
+    static void alignText(final @NonNull TextSizeInformation aTextSizeInformation,
+                          final @Alignment int aAlignment,
+                          final float aSpanSize) {
+        // Measurements are cached and aligned again at each draw
+        for (CharSequenceSizedElement charSequenceSizedElement : aTextSizeInformation.charSequenceSizedElements) {
+            charSequenceSizedElement.spaceBefore = 0;
+            charSequenceSizedElement.spaceAfter = 0;
+        }
+
         switch (aAlignment) {
             case Alignment.BEGIN:
                 alignTextLeft(aTextSizeInformation, aSpanSize);
@@ -416,14 +611,42 @@ public class SuperReplacementSpan extends ReplacementSpan {
                 justifyText(aTextSizeInformation, aSpanSize, true);
                 break;
         }
+    }
 
+    static void drawForeground(final @NonNull CharSequence aText,
+                               final @NonNull TextSizeInformation aTextSizeInformation,
+                               final @NonNull Canvas aCanvas,
+                               final float aStartX,
+                               final int aY,
+                               final int aTop,
+                               final int aBottom,
+                               final int aHighlightStart,
+                               final int aHighlightEnd,
+                               final int aHighlightColor,
+                               final float aClipLeft,
+                               final float aClipRight) {
         float cursor = aStartX;
         int count = 0;
 
         for (CharSequenceSizedElement charSequenceSizedElement : aTextSizeInformation.charSequenceSizedElements) {
-            drawBackground(charSequenceSizedElement, aCanvas, cursor, aY,
-                    cursor == 0,
-                    count == aTextSizeInformation.charSequenceSizedElements.size() - 1);
+            final float elementSize = charSequenceSizedElement.spaceBefore + charSequenceSizedElement.size +
+                    charSequenceSizedElement.spaceAfter;
+
+            // Glyphs may overhang their advance, culled elements being
+            // further than half of their text size from the clip.
+
+            final float overhang = charSequenceSizedElement.textPaint.getTextSize() / 2;
+
+            if (cursor - overhang > aClipRight) {
+                break;
+            }
+
+            if (cursor + elementSize + overhang < aClipLeft) {
+                cursor += elementSize;
+                count++;
+
+                continue;
+            }
 
             if (charSequenceSizedElement.charSequenceElement.replacementSpans != null &&
                     charSequenceSizedElement.charSequenceElement.replacementSpans.size() > 0) {
@@ -436,7 +659,7 @@ public class SuperReplacementSpan extends ReplacementSpan {
                             charSequenceSizedElement.charSequenceElement.end,
                             cursor,
                             aTop, aY, aBottom, charSequenceSizedElement.textPaint,
-                            charSequenceSizedElement.spaceBefore + charSequenceSizedElement.size + charSequenceSizedElement.spaceAfter);
+                            elementSize, aClipLeft, aClipRight);
                 } else {
                     replacementSpan.draw(aCanvas, aText, charSequenceSizedElement.charSequenceElement.start,
                             charSequenceSizedElement.charSequenceElement.end,
@@ -456,10 +679,22 @@ public class SuperReplacementSpan extends ReplacementSpan {
                     charSequenceSizedElement.textPaint.setTextScaleX(scaleX);
                 }
 
+                final boolean highlighted = charSequenceSizedElement.charSequenceElement.start < aHighlightEnd &&
+                        charSequenceSizedElement.charSequenceElement.end > aHighlightStart;
+                final int color = charSequenceSizedElement.textPaint.getColor();
+
+                if (highlighted) {
+                    charSequenceSizedElement.textPaint.setColor(aHighlightColor);
+                }
+
                 aCanvas.drawText(aText, charSequenceSizedElement.charSequenceElement.start,
                         charSequenceSizedElement.charSequenceElement.end,
                         cursor + charSequenceSizedElement.spaceBefore, aY, charSequenceSizedElement.textPaint);
 
+                if (highlighted) {
+                    charSequenceSizedElement.textPaint.setColor(color);
+                }
+
                 if (charSequenceSizedElement.spaceAfter != 0 && count != aTextSizeInformation.charSequenceSizedElements.size() - 1) {
                     final float spaceSize = charSequenceSizedElement.textPaint.measureText(" ");
                     final float scaleX = charSequenceSizedElement.textPaint.getTextScaleX();
@@ -473,11 +708,37 @@ public class SuperReplacementSpan extends ReplacementSpan {
                 }
             }
 
-            cursor += charSequenceSizedElement.spaceBefore + charSequenceSizedElement.size + charSequenceSizedElement.spaceAfter;
+            cursor += elementSize;
             count++;
         }
     }
 
+    static void drawText(final @NonNull CharSequence aText,
+                                 final @NonNull TextSizeInformation aTextSizeInformation,
+                                 final @Alignment int aAlignment,
+                                 final @NonNull Canvas aCanvas,
+                                 final float aSpanSize,
+                                 final float aStartX,
+                                 final int aY,
+                                 final int aTop,
+                                 final int aBottom,
+                                 final int aHighlightStart,
+                                 final int aHighlightEnd,
+                                 final int aHighlightColor,
+                                 final float aClipLeft,
+                                 final float aClipRight) {
+        // Cached measurements are shared by all the threads drawing the
+        // same span: their spacing and paints are only modified, and
+        // used, while holding their lock.
+
+        synchronized (aTextSizeInformation) {
+            alignText(aTextSizeInformation, aAlignment, aSpanSize);
+            drawBackgrounds(aTextSizeInformation, aCanvas, aStartX, aY, aClipLeft, aClipRight);
+            drawForeground(aText, aTextSizeInformation, aCanvas, aStartX, aY, aTop, aBottom,
+                    aHighlightStart, aHighlightEnd, aHighlightColor, aClipLeft, aClipRight);
+        }
+    }
+
     private <T> List<T> getSpans(final @NonNull Spanned text, int start, int end, Class<T> type) {
         final LinkedList<T> list = new LinkedList<>();
 
@@ -501,21 +762,135 @@ public class SuperReplacementSpan extends ReplacementSpan {
     }
 
 
+    private static final ThreadLocal<Rect> sClipBounds = new ThreadLocal<Rect>() {
+        @Override
+        protected Rect initialValue() {
+            return new Rect();
+        }
+    };
+
     final @Alignment int mAlignment;
+    final TextSizeCache mTextSizeCache = new TextSizeCache();
+
+    private volatile @Nullable RubyHighlighter mRubyHighlighter;
+    private volatile @Nullable SizeHint mSizeHint;
+    private volatile @Nullable RubyScaling mRubyScaling;
+    private volatile @Nullable RubyLineMetrics mRubyLineMetrics;
+
+    public @Alignment int getAlignment() {
+        return mAlignment;
+    }
+
+    // See RubyScaling.attach()
+    public void setRubyScaling(final @Nullable RubyScaling aRubyScaling) {
+        mRubyScaling = aRubyScaling;
+    }
+
+    public @Nullable RubyScaling getRubyScaling() {
+        return mRubyScaling;
+    }
+
+    // See RubyLineMetrics.attach()
+    public void setRubyLineMetrics(final @Nullable RubyLineMetrics aRubyLineMetrics) {
+        mRubyLineMetrics = aRubyLineMetrics;
+    }
+
+    public @Nullable RubyLineMetrics getRubyLineMetrics() {
+        return mRubyLineMetrics;
+    }
+
+    float getPreviewScale() {
+        final RubyScaling rubyScaling = mRubyScaling;
+
+        return rubyScaling == null ? 1 : rubyScaling.getPreviewScale();
+    }
+
+    // Set on spans restored by RubySnapshot, see SizeHint
+    void setSizeHint(final @Nullable SizeHint aSizeHint) {
+        mSizeHint = aSizeHint;
+    }
+
+    // Negative when the hint does not apply to aPaint. A hint is dropped
+    // once it did not apply, the span being measured for real and its
+    // measurements cached from then on, so that an outdated hint is never
+    // used again.
+    int getHintedSize(final @NonNull Paint aPaint, final @Nullable Paint.FontMetricsInt aFontMetricsInt,
+                      final boolean aFuriganaVisible) {
+        final SizeHint sizeHint = mSizeHint;
+
+        if (sizeHint == null) {
+            return -1;
+        }
+
+        if (!sizeHint.matches(aPaint, aFuriganaVisible)) {
+            mSizeHint = null;
+
+            return -1;
+        }
+
+        return sizeHint.apply(aFontMetricsInt);
+    }
+
+    // Highlights only change colors when drawing, they are not part of
+    // the measurements: see RubyHighlighter.attach().
+
+    public void setRubyHighlighter(final @Nullable RubyHighlighter aRubyHighlighter) {
+        mRubyHighlighter = aRubyHighlighter;
+    }
+
+    public @Nullable RubyHighlighter getRubyHighlighter() {
+        return mRubyHighlighter;
+    }
+
+    @Nullable RubyHighlighter.Highlight getHighlight() {
+        final RubyHighlighter rubyHighlighter = mRubyHighlighter;
+
+        return rubyHighlighter == null ? null : rubyHighlighter.getHighlight(this);
+    }
+
+    TextSizeInformation getCachedTextSize(final @NonNull TextSizeCache aTextSizeCache,
+                                          final @NonNull Paint aPaint, final @NonNull CharSequence aText,
+                                          final int aStart, final int aEnd) {
+        TextSizeInformation textSizeInformation = aTextSizeCache.get(aPaint, aText, aStart, aEnd);
+
+        if (textSizeInformation == null) {
+            textSizeInformation = getTextSize(aPaint, aText, aStart, aEnd);
+
+            aTextSizeCache.put(aPaint, aText, aStart, aEnd, textSizeInformation);
+        }
+
+        return textSizeInformation;
+    }
 
     void drawExpanded(@NonNull Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, @NonNull Paint paint,
-                              final float expandedSpanSize) {
-        final TextSizeInformation textSizeInformation = getTextSize(paint, text, start, end);
+                              final float expandedSpanSize, final float clipLeft, final float clipRight) {
+        final TextSizeInformation textSizeInformation = getCachedTextSize(mTextSizeCache, paint, text, start, end);
+        final RubyHighlighter.Highlight highlight = getHighlight();
 
         drawText(text, textSizeInformation, mAlignment, canvas,
                 textSizeInformation.size, x, y,
                 top,
-                bottom);
+                bottom,
+                highlight == null ? 0 : start + highlight.textStart,
+                highlight == null ? 0 : start + highlight.textEnd,
+                highlight == null ? 0 : highlight.color,
+                clipLeft, clipRight);
     }
 
-    @Override
-    public int getSize(@NonNull Paint paint, CharSequence text, int start, int end, @Nullable Paint.FontMetricsInt fm) {
-        final TextSizeInformation textSizeInformation = getTextSize(paint, text, start, end);
+    // Size for paint, getSize() scaling it while a preview is set
+    int getExactSize(@NonNull Paint paint, CharSequence text, int start, int end, @Nullable Paint.FontMetricsInt fm) {
+        final int hintedSize = getHintedSize(paint, fm, true);
+
+        if (hintedSize >= 0) {
+            return hintedSize;
+        }
+
+        return getBaseSize(paint, text, start, end, fm);
+    }
+
+    // Size of the text alone, measured without using the size hint
+    final int getBaseSize(@NonNull Paint paint, CharSequence text, int start, int end, @Nullable Paint.FontMetricsInt fm) {
+        final TextSizeInformation textSizeInformation = getCachedTextSize(mTextSizeCache, paint, text, start, end);
 
         if (fm != null) {
             fm.bottom = textSizeInformation.fontMetricsInt.bottom;
@@ -528,8 +903,128 @@ public class SuperReplacementSpan extends ReplacementSpan {
         return Math.round(textSizeInformation.size);
     }
 
+    private int getScaledSize(@NonNull Paint paint, CharSequence text, int start, int end, @Nullable Paint.FontMetricsInt fm) {
+        final float previewScale = getPreviewScale();
+        final int size = getExactSize(paint, text, start, end, fm);
+        final RubyLineMetrics rubyLineMetrics = mRubyLineMetrics;
+
+        if (rubyLineMetrics != null && fm != null) {
+            rubyLineMetrics.apply(paint, fm);
+        }
+
+        if (previewScale == 1) {
+            return size;
+        }
+
+        if (fm != null) {
+            fm.ascent = Math.round(fm.ascent * previewScale);
+            fm.top = Math.round(fm.top * previewScale);
+            fm.descent = Math.round(fm.descent * previewScale);
+            fm.bottom = Math.round(fm.bottom * previewScale);
+            fm.leading = Math.round(fm.leading * previewScale);
+        }
+
+        return Math.round(size * previewScale);
+    }
+
+    // Clip of aCanvas in its current coordinates, queried once per draw
+    // and shared with nested spans to skip the elements outside of it.
+    // Null when it is unknown or empty, everything being drawn then.
+
+    private static @Nullable Rect getClipBounds(final @NonNull Canvas aCanvas) {
+        final Rect clipBounds = sClipBounds.get();
+
+        if (!aCanvas.getClipBounds(clipBounds) || clipBounds.isEmpty()) {
+            return null;
+        }
+
+        return clipBounds;
+    }
+
+    private void drawScaled(@NonNull Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, @NonNull Paint paint) {
+        final float previewScale = getPreviewScale();
+
+        if (previewScale == 1) {
+            final Rect clipBounds = getClipBounds(canvas);
+
+            drawExpanded(canvas, text, start, end, x, top, y, bottom, paint, 0,
+                    clipBounds == null ? Float.NEGATIVE_INFINITY : clipBounds.left,
+                    clipBounds == null ? Float.POSITIVE_INFINITY : clipBounds.right);
+
+            return;
+        }
+
+        // Drawn at the size of paint around the baseline, then scaled
+        final int saveCount = canvas.save();
+
+        canvas.translate(x, y);
+        canvas.scale(previewScale, previewScale);
+
+        final Rect clipBounds = getClipBounds(canvas);
+
+        drawExpanded(canvas, text, start, end, 0,
+                Math.round((top - y) / previewScale), 0, Math.round((bottom - y) / previewScale),
+                paint, 0,
+                clipBounds == null ? Float.NEGATIVE_INFINITY : clipBounds.left,
+                clipBounds == null ? Float.POSITIVE_INFINITY : clipBounds.right);
+
+        canvas.restoreToCount(saveCount);
+    }
+
+    // Outlines of elements and spacing, for RubyDebug
+    void drawDebugOverlay(@NonNull Canvas canvas, CharSequence text, int start, int end, float x, int y,
+                          @NonNull Paint paint, @NonNull Paint debugPaint) {
+        final TextSizeInformation textSizeInformation = getCachedTextSize(mTextSizeCache, paint, text, start, end);
+
+        synchronized (textSizeInformation) {
+            alignText(textSizeInformation, mAlignment, textSizeInformation.size);
+            RubyDebug.drawElements(textSizeInformation, canvas, x, y, debugPaint);
+        }
+
+        RubyDebug.recordElementCount(this, textSizeInformation.charSequenceSizedElements.size());
+    }
+
+    // Aligned elements, for RubyDebug.dump()
+    void dumpDebug(@NonNull Appendable appendable, CharSequence text, int start, int end,
+                   @NonNull Paint paint) throws IOException {
+        final TextSizeInformation textSizeInformation = getCachedTextSize(mTextSizeCache, paint, text, start, end);
+
+        synchronized (textSizeInformation) {
+            alignText(textSizeInformation, mAlignment, textSizeInformation.size);
+            RubyDebug.dumpElements(appendable, "text", text, textSizeInformation);
+        }
+    }
+
+    @Override
+    public int getSize(@NonNull Paint paint, CharSequence text, int start, int end, @Nullable Paint.FontMetricsInt fm) {
+        if (!RubyDebug.isEnabled()) {
+            return getScaledSize(paint, text, start, end, fm);
+        }
+
+        final long measureStart = System.nanoTime();
+        final int size = getScaledSize(paint, text, start, end, fm);
+
+        RubyDebug.recordMeasure(this, System.nanoTime() - measureStart, size);
+
+        return size;
+    }
+
     @Override
     public void draw(@NonNull Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, @NonNull Paint paint) {
-        drawExpanded(canvas, text, start, end, x, top, y, bottom, paint, 0);
+        if (!RubyDebug.isEnabled()) {
+            drawScaled(canvas, text, start, end, x, top, y, bottom, paint);
+
+            return;
+        }
+
+        final long drawStart = System.nanoTime();
+
+        drawScaled(canvas, text, start, end, x, top, y, bottom, paint);
+
+        RubyDebug.recordDraw(this, System.nanoTime() - drawStart);
+
+        if (getPreviewScale() == 1) {
+            RubyDebug.drawOverlay(this, canvas, text, start, end, x, top, y, bottom, paint);
+        }
     }
 }
@@ -18,14 +18,20 @@ package org.happypeng.sumatora.android.superrubyspan;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.text.Spanned;
+import android.text.SpannedString;
 import android.text.TextPaint;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.IOException;
+
 public class SuperRubySpan extends SuperReplacementSpan {
     private final @NonNull CharSequence mFurigana;
     private final @Alignment int mFuriganaAlignment;
+    private final @Nullable RubyVisibility mRubyVisibility;
+    private final TextSizeCache mFuriganaSizeCache = new TextSizeCache();
 
     public SuperRubySpan(final @NonNull CharSequence aFurigana) {
         this(aFurigana, Alignment.CENTER, Alignment.CENTER);
@@ -38,24 +44,82 @@ public class SuperRubySpan extends SuperReplacementSpan {
     public SuperRubySpan(final @NonNull CharSequence aFurigana,
                          final @Alignment int aTextAlignment,
                          final @Alignment int aFuriganaAlignment) {
+        this(aFurigana, aTextAlignment, aFuriganaAlignment, null);
+    }
+
+    // aRubyVisibility may be shared by all the spans of a text, so that
+    // furigana are shown or hidden without rebuilding it.
+    //
+    // The span keeps an immutable copy of aFurigana, so that measuring
+    // it again does not need to compare its characters and spans: see
+    // MeasureKey. Changing aFurigana afterwards does not affect the span.
+
+    public SuperRubySpan(final @NonNull CharSequence aFurigana,
+                         final @Alignment int aTextAlignment,
+                         final @Alignment int aFuriganaAlignment,
+                         final @Nullable RubyVisibility aRubyVisibility) {
         super(aTextAlignment);
 
-        mFurigana = aFurigana;
+        mFurigana = copyFurigana(aFurigana);
         mFuriganaAlignment = aFuriganaAlignment;
+        mRubyVisibility = aRubyVisibility;
+    }
+
+    private static @NonNull CharSequence copyFurigana(final @NonNull CharSequence aFurigana) {
+        if (aFurigana instanceof String || aFurigana instanceof SpannedString) {
+            return aFurigana;
+        }
+
+        return aFurigana instanceof Spanned ? new SpannedString(aFurigana) : aFurigana.toString();
+    }
+
+    public @NonNull CharSequence getFurigana() {
+        return mFurigana;
+    }
+
+    public @Alignment int getFuriganaAlignment() {
+        return mFuriganaAlignment;
+    }
+
+    public @Nullable RubyVisibility getRubyVisibility() {
+        return mRubyVisibility;
+    }
+
+    public boolean isFuriganaVisible() {
+        return mRubyVisibility == null || mRubyVisibility.isFuriganaVisible();
+    }
+
+    // Furigana inherit the text size of the first character of the
+    // text, for RelativeSizeSpan.
+
+    TextSizeInformation getFuriganaTextSize(final @NonNull Paint aPaint,
+                                            final @NonNull TextSizeInformation aTextSizeInformation) {
+        final TextPaint inheritPaint = new TextPaint(aPaint);
+
+        if (aTextSizeInformation.charSequenceSizedElements.size() > 0) {
+            inheritPaint.setTextSize(aTextSizeInformation.charSequenceSizedElements.get(0).textPaint.getTextSize());
+        }
+
+        return getCachedTextSize(mFuriganaSizeCache, inheritPaint, mFurigana, 0, mFurigana.length());
     }
 
     @Override
-    public int getSize(@NonNull Paint paint, CharSequence text, int start, int end, @Nullable Paint.FontMetricsInt fm) {
-        final TextSizeInformation textSizeInformation = getTextSize(paint, text, start, end);
-        final TextPaint inheritPaint = new TextPaint(paint);
+    int getExactSize(@NonNull Paint paint, CharSequence text, int start, int end, @Nullable Paint.FontMetricsInt fm) {
+        final boolean furiganaVisible = isFuriganaVisible();
+        final int hintedSize = getHintedSize(paint, fm, furiganaVisible);
+
+        if (hintedSize >= 0) {
+            return hintedSize;
+        }
 
-        // For RelativeSizeSpan
-        if (textSizeInformation.charSequenceSizedElements.size() > 0) {
-            inheritPaint.setTextSize(textSizeInformation.charSequenceSizedElements.get(0).textPaint.getTextSize());
+        // Hidden furigana: base metrics only, from the same cache, the
+        // hint having been checked above with the visibility of furigana
+        if (!furiganaVisible) {
+            return getBaseSize(paint, text, start, end, fm);
         }
 
-        final TextSizeInformation furiganaSizeInformation = getTextSize(inheritPaint,
-                mFurigana, 0, mFurigana.length());
+        final TextSizeInformation textSizeInformation = getCachedTextSize(mTextSizeCache, paint, text, start, end);
+        final TextSizeInformation furiganaSizeInformation = getFuriganaTextSize(paint, textSizeInformation);
 
         if (fm != null) {
             fm.bottom = textSizeInformation.fontMetricsInt.bottom;
@@ -73,33 +137,116 @@ public class SuperRubySpan extends SuperReplacementSpan {
 
     @Override
     void drawExpanded(@NonNull Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, @NonNull Paint paint,
-                              final float expandedSpanSize) {
-        final TextPaint inheritPaint = new TextPaint(paint);
-
-        final TextSizeInformation textSizeInformation = getTextSize(paint, text, start, end);
+                              final float expandedSpanSize, final float clipLeft, final float clipRight) {
+        if (!isFuriganaVisible()) {
+            super.drawExpanded(canvas, text, start, end, x, top, y, bottom, paint, expandedSpanSize,
+                    clipLeft, clipRight);
 
-        // For RelativeSizeSpan
-        if (textSizeInformation.charSequenceSizedElements.size() > 0) {
-            inheritPaint.setTextSize(textSizeInformation.charSequenceSizedElements.get(0).textPaint.getTextSize());
+            return;
         }
 
-        final TextSizeInformation furiganaSizeInformation = getTextSize(inheritPaint, mFurigana, 0, mFurigana.length());
+        final TextSizeInformation textSizeInformation = getCachedTextSize(mTextSizeCache, paint, text, start, end);
+        final TextSizeInformation furiganaSizeInformation = getFuriganaTextSize(paint, textSizeInformation);
 
         final float spanSize = Math.round(Math.max(Math.max(textSizeInformation.size,
                 furiganaSizeInformation.size), expandedSpanSize));
 
-        drawText(text, textSizeInformation, mAlignment, canvas,
-                spanSize, x, y,
-                top - textSizeInformation.fontMetricsInt.ascent +
-                        furiganaSizeInformation.fontMetricsInt.descent,
-                bottom);
-
-        drawText(mFurigana, furiganaSizeInformation, mFuriganaAlignment, canvas,
-                spanSize, x,
-                y + textSizeInformation.fontMetricsInt.ascent -
-                        furiganaSizeInformation.fontMetricsInt.descent,
-                top,
-                bottom + textSizeInformation.fontMetricsInt.ascent -
-                        furiganaSizeInformation.fontMetricsInt.bottom);
+        final int furiganaY = y + textSizeInformation.fontMetricsInt.ascent -
+                furiganaSizeInformation.fontMetricsInt.descent;
+
+        final RubyHighlighter.Highlight highlight = getHighlight();
+
+        // Always locked in the same order, text then furigana, nested
+        // spans being drawn while holding the lock of their parent.
+
+        synchronized (textSizeInformation) {
+            synchronized (furiganaSizeInformation) {
+                alignText(textSizeInformation, mAlignment, spanSize);
+                alignText(furiganaSizeInformation, mFuriganaAlignment, spanSize);
+
+                // Backgrounds of both the text and the furigana are drawn in a
+                // single pass before any glyph, so that they never cover each other.
+
+                drawBackgrounds(textSizeInformation, canvas, x, y, clipLeft, clipRight);
+                drawBackgrounds(furiganaSizeInformation, canvas, x, furiganaY, clipLeft, clipRight);
+
+                drawForeground(text, textSizeInformation, canvas, x, y,
+                        top - textSizeInformation.fontMetricsInt.ascent +
+                                furiganaSizeInformation.fontMetricsInt.descent,
+                        bottom,
+                        highlight == null ? 0 : start + highlight.textStart,
+                        highlight == null ? 0 : start + highlight.textEnd,
+                        highlight == null ? 0 : highlight.color,
+                        clipLeft, clipRight);
+
+                drawForeground(mFurigana, furiganaSizeInformation, canvas, x, furiganaY,
+                        top,
+                        bottom + textSizeInformation.fontMetricsInt.ascent -
+                                furiganaSizeInformation.fontMetricsInt.bottom,
+                        highlight == null ? 0 : highlight.furiganaStart,
+                        highlight == null ? 0 : highlight.furiganaEnd,
+                        highlight == null ? 0 : highlight.color,
+                        clipLeft, clipRight);
+            }
+        }
+    }
+
+    @Override
+    void drawDebugOverlay(@NonNull Canvas canvas, CharSequence text, int start, int end, float x, int y,
+                          @NonNull Paint paint, @NonNull Paint debugPaint) {
+        if (!isFuriganaVisible()) {
+            super.drawDebugOverlay(canvas, text, start, end, x, y, paint, debugPaint);
+
+            return;
+        }
+
+        final TextSizeInformation textSizeInformation = getCachedTextSize(mTextSizeCache, paint, text, start, end);
+        final TextSizeInformation furiganaSizeInformation = getFuriganaTextSize(paint, textSizeInformation);
+
+        final float spanSize = Math.round(Math.max(textSizeInformation.size, furiganaSizeInformation.size));
+        final int furiganaY = y + textSizeInformation.fontMetricsInt.ascent -
+                furiganaSizeInformation.fontMetricsInt.descent;
+
+        RubyDebug.drawRubyBand(canvas, x, x + spanSize,
+                furiganaY + furiganaSizeInformation.fontMetricsInt.ascent,
+                y + textSizeInformation.fontMetricsInt.ascent, debugPaint);
+
+        synchronized (textSizeInformation) {
+            synchronized (furiganaSizeInformation) {
+                alignText(textSizeInformation, mAlignment, spanSize);
+                alignText(furiganaSizeInformation, mFuriganaAlignment, spanSize);
+
+                RubyDebug.drawElements(textSizeInformation, canvas, x, y, debugPaint);
+                RubyDebug.drawElements(furiganaSizeInformation, canvas, x, furiganaY, debugPaint);
+            }
+        }
+
+        RubyDebug.recordElementCount(this, textSizeInformation.charSequenceSizedElements.size() +
+                furiganaSizeInformation.charSequenceSizedElements.size());
+    }
+
+    @Override
+    void dumpDebug(@NonNull Appendable appendable, CharSequence text, int start, int end,
+                   @NonNull Paint paint) throws IOException {
+        if (!isFuriganaVisible()) {
+            super.dumpDebug(appendable, text, start, end, paint);
+
+            return;
+        }
+
+        final TextSizeInformation textSizeInformation = getCachedTextSize(mTextSizeCache, paint, text, start, end);
+        final TextSizeInformation furiganaSizeInformation = getFuriganaTextSize(paint, textSizeInformation);
+
+        final float spanSize = Math.round(Math.max(textSizeInformation.size, furiganaSizeInformation.size));
+
+        synchronized (textSizeInformation) {
+            synchronized (furiganaSizeInformation) {
+                alignText(textSizeInformation, mAlignment, spanSize);
+                alignText(furiganaSizeInformation, mFuriganaAlignment, spanSize);
+
+                RubyDebug.dumpElements(appendable, "text", text, textSizeInformation);
+                RubyDebug.dumpElements(appendable, "furigana", mFurigana, furiganaSizeInformation);
+            }
+        }
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+// A slot of the process-wide RubyMeasureCache, owned by a span. Holding
+// the slot rather than the measurements lets the global cache bound the
+// memory used by all spans together.
+
+class TextSizeCache {
+    private final RubyMeasureCache mRubyMeasureCache;
+
+    TextSizeCache(final @NonNull RubyMeasureCache aRubyMeasureCache) {
+        mRubyMeasureCache = aRubyMeasureCache;
+    }
+
+    TextSizeCache() {
+        this(RubyMeasureCache.getInstance());
+    }
+
+    @Nullable SuperReplacementSpan.TextSizeInformation get(final @NonNull Paint aPaint,
+                                                           final @NonNull CharSequence aText,
+                                                           final int aStart, final int aEnd) {
+        return mRubyMeasureCache.get(this, aPaint, aText, aStart, aEnd);
+    }
+
+    void put(final @NonNull Paint aPaint,
+             final @NonNull CharSequence aText,
+             final int aStart, final int aEnd,
+             final @NonNull SuperReplacementSpan.TextSizeInformation aTextSizeInformation) {
+        mRubyMeasureCache.put(this, aPaint, aText, aStart, aEnd, aTextSizeInformation);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// Reads its input in fixed size chunks, and keeps a bounded amount of
+// pending text: parsers built on it use constant memory whatever the
+// length of the input, as long as annotations are shorter than
+// MAX_ANNOTATION_LENGTH.
+
+abstract class AbstractRubyPullParser implements RubyPullParser {
+    static final int CHUNK_LENGTH = 4096;
+    static final int MAX_ANNOTATION_LENGTH = 256;
+
+    private final Reader mReader;
+    private final char[] mBuffer;
+    private int mBufferPosition;
+    private int mBufferLimit;
+
+    final StringBuilder mPendingText;
+
+    private final StringBuilder mText;
+    private final StringBuilder mReading;
+    private final StringBuilder mQueuedBase;
+    private final StringBuilder mQueuedReading;
+    private boolean mRubyQueued;
+    private @EventType int mEventType;
+
+    AbstractRubyPullParser(final @NonNull Reader aReader) {
+        mReader = aReader;
+        mBuffer = new char[CHUNK_LENGTH];
+        mBufferPosition = 0;
+        mBufferLimit = 0;
+
+        mPendingText = new StringBuilder();
+
+        mText = new StringBuilder();
+        mReading = new StringBuilder();
+        mQueuedBase = new StringBuilder();
+        mQueuedReading = new StringBuilder();
+        mRubyQueued = false;
+        mEventType = EventType.TEXT;
+    }
+
+    // Returns the next character of the input, or -1 at its end
+    final int read() throws IOException {
+        if (mBufferPosition == mBufferLimit) {
+            mBufferLimit = mReader.read(mBuffer, 0, mBuffer.length);
+            mBufferPosition = 0;
+
+            if (mBufferLimit <= 0) {
+                mBufferLimit = 0;
+
+                return -1;
+            }
+        }
+
+        return mBuffer[mBufferPosition++];
+    }
+
+    // Returns the next character without consuming it, or -1
+    final int peek() throws IOException {
+        final int c = read();
+
+        if (c != -1) {
+            mBufferPosition--;
+        }
+
+        return c;
+    }
+
+    // Makes the first aLength characters of the pending text the next
+    // TEXT event, returning false if there are none.
+    final boolean emitText(final int aLength) {
+        if (aLength <= 0) {
+            return false;
+        }
+
+        mText.setLength(0);
+        mText.append(mPendingText, 0, aLength);
+        mPendingText.delete(0, aLength);
+
+        mEventType = EventType.TEXT;
+
+        return true;
+    }
+
+    // Makes the pending text before aBaseStart a TEXT event, and the
+    // pending text after it a RUBY event read with aReading. If there is
+    // no text before aBaseStart, the RUBY event comes first; otherwise it
+    // is queued for the next call to next().
+    final void emitRuby(final int aBaseStart, final @NonNull CharSequence aReading) {
+        mQueuedBase.setLength(0);
+        mQueuedBase.append(mPendingText, aBaseStart, mPendingText.length());
+        mQueuedReading.setLength(0);
+        mQueuedReading.append(aReading);
+        mPendingText.setLength(aBaseStart);
+
+        mRubyQueued = true;
+
+        if (!emitText(aBaseStart)) {
+            pollQueuedRuby();
+        }
+    }
+
+    private boolean pollQueuedRuby() {
+        if (!mRubyQueued) {
+            return false;
+        }
+
+        mText.setLength(0);
+        mText.append(mQueuedBase);
+        mReading.setLength(0);
+        mReading.append(mQueuedReading);
+
+        mRubyQueued = false;
+        mEventType = EventType.RUBY;
+
+        return true;
+    }
+
+    // Parses the input until an event is emitted with emitText() or
+    // emitRuby(), returning false at the end of the input.
+    abstract boolean parse() throws IOException;
+
+    @Override
+    public final @EventType int next() throws IOException {
+        if (mEventType == EventType.END_DOCUMENT) {
+            return mEventType;
+        }
+
+        if (pollQueuedRuby()) {
+            return mEventType;
+        }
+
+        if (parse()) {
+            return mEventType;
+        }
+
+        if (emitText(mPendingText.length())) {
+            return mEventType;
+        }
+
+        mEventType = EventType.END_DOCUMENT;
+
+        return mEventType;
+    }
+
+    @Override
+    public @NonNull CharSequence getText() {
+        return mText;
+    }
+
+    @Override
+    public @Nullable CharSequence getReading() {
+        return mEventType == EventType.RUBY ? mReading : null;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// Parses Aozora Bunko text: 《reading》 annotates either the text since
+// the preceding ｜, or the run of kanji immediately before it. Editorial
+// notes such as ［＃「漢字」に傍点］ are skipped, and a ｜ not followed by
+// a reading on the same line is dropped.
+
+public class AozoraRubyParser extends AbstractRubyPullParser {
+    private static final char BASE_START = '｜';
+    private static final char READING_START = '《';
+    private static final char READING_END = '》';
+    private static final char NOTE_START = '［';
+    private static final char NOTE_MARK = '＃';
+    private static final char NOTE_END = '］';
+
+    private final StringBuilder mReadingBuffer;
+
+    private int mBaseStart;
+    private int mKanjiStart;
+
+    public AozoraRubyParser(final @NonNull Reader aReader) {
+        super(aReader);
+
+        mReadingBuffer = new StringBuilder();
+
+        mBaseStart = -1;
+        mKanjiStart = -1;
+    }
+
+    static boolean isKanji(final char aChar) {
+        return (aChar >= 0x4E00 && aChar <= 0x9FFF) ||
+                (aChar >= 0x3400 && aChar <= 0x4DBF) ||
+                (aChar >= 0xF900 && aChar <= 0xFAFF) ||
+                // High surrogates of the supplementary ideographic planes
+                (aChar >= 0xD840 && aChar <= 0xD8BF) ||
+                aChar == '々' || aChar == '〆' || aChar == '〇' ||
+                aChar == 'ヶ' || aChar == '〻';
+    }
+
+    private void skipNote() throws IOException {
+        int depth = 1;
+        int c;
+
+        while ((c = read()) != -1) {
+            if (c == NOTE_START) {
+                depth++;
+            } else if (c == NOTE_END && --depth == 0) {
+                return;
+            }
+        }
+    }
+
+    // Reads up to 》, returning false if the reading is not closed on the
+    // same line. What was read is left in the reading buffer.
+    private boolean readReading() throws IOException {
+        mReadingBuffer.setLength(0);
+
+        while (mReadingBuffer.length() <= MAX_ANNOTATION_LENGTH) {
+            final int c = peek();
+
+            if (c == -1 || c == '\n' || c == '\r' || c == READING_START) {
+                return false;
+            }
+
+            read();
+
+            if (c == READING_END) {
+                return true;
+            }
+
+            mReadingBuffer.append((char) c);
+        }
+
+        return false;
+    }
+
+    private boolean parseReading() throws IOException {
+        final int baseStart = mBaseStart >= 0 ? mBaseStart : mKanjiStart;
+        final boolean closed = readReading();
+
+        if (closed && mReadingBuffer.length() > 0 &&
+                baseStart >= 0 && baseStart < mPendingText.length()) {
+            mBaseStart = -1;
+            mKanjiStart = -1;
+
+            emitRuby(baseStart, mReadingBuffer);
+
+            return true;
+        }
+
+        mPendingText.append(READING_START).append(mReadingBuffer);
+
+        if (closed) {
+            mPendingText.append(READING_END);
+        }
+
+        mBaseStart = -1;
+        mKanjiStart = -1;
+
+        return false;
+    }
+
+    // Flushes pending text that can no longer be the base of a reading
+    private boolean flushPendingText() {
+        if (mPendingText.length() < CHUNK_LENGTH) {
+            return false;
+        }
+
+        if (mBaseStart >= 0 && mPendingText.length() - mBaseStart > MAX_ANNOTATION_LENGTH) {
+            mBaseStart = -1;
+        }
+
+        if (mKanjiStart >= 0 && mPendingText.length() - mKanjiStart > MAX_ANNOTATION_LENGTH) {
+            mKanjiStart = mPendingText.length() - MAX_ANNOTATION_LENGTH;
+        }
+
+        int length = mPendingText.length();
+
+        if (mBaseStart >= 0) {
+            length = Math.min(length, mBaseStart);
+        }
+
+        if (mKanjiStart >= 0) {
+            length = Math.min(length, mKanjiStart);
+        }
+
+        if (mBaseStart >= 0) {
+            mBaseStart -= length;
+        }
+
+        if (mKanjiStart >= 0) {
+            mKanjiStart -= length;
+        }
+
+        return emitText(length);
+    }
+
+    @Override
+    boolean parse() throws IOException {
+        int c;
+
+        while ((c = read()) != -1) {
+            switch (c) {
+                case '\r':
+                    break;
+                case BASE_START:
+                    mBaseStart = mPendingText.length();
+                    mKanjiStart = -1;
+                    break;
+                case READING_START:
+                    if (parseReading()) {
+                        return true;
+                    }
+                    break;
+                case NOTE_START:
+                    if (peek() == NOTE_MARK) {
+                        skipNote();
+                    } else {
+                        mPendingText.append((char) c);
+                        mKanjiStart = -1;
+                    }
+                    break;
+                case '\n':
+                    mPendingText.append((char) c);
+                    mBaseStart = -1;
+                    mKanjiStart = -1;
+                    break;
+                default:
+                    if (isKanji((char) c)) {
+                        if (mKanjiStart < 0) {
+                            mKanjiStart = mPendingText.length();
+                        }
+                    } else if (!Character.isLowSurrogate((char) c)) {
+                        mKanjiStart = -1;
+                    }
+
+                    mPendingText.append((char) c);
+            }
+
+            if (flushPendingText()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
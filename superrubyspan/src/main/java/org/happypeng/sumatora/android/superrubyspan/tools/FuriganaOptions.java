@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import android.text.SpannableString;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.happypeng.sumatora.android.superrubyspan.RubyVisibility;
+import org.happypeng.sumatora.android.superrubyspan.SuperRubySpan;
+
+// Options of the conversions of JapaneseText, read when converting:
+// changing them afterwards does not affect text already converted.
+//
+// By default, text outside of annotations is spannified, furigana are
+// always visible, all annotations are converted to ruby spans, and
+// both text and furigana are aligned with JIS rules.
+
+public class FuriganaOptions {
+    // Adds spans to the furigana of each ruby span created, such as
+    // styles or nested ruby, after their relative size is set
+    public interface FuriganaDecorator {
+        void decorate(@NonNull SpannableString aFurigana);
+    }
+
+    private final float mRelativeSize;
+
+    private @Nullable RubyVisibility mRubyVisibility;
+    private @Nullable KnownKanji mKnownKanji;
+    private boolean mSpannifyText;
+    private @SuperRubySpan.Alignment int mAlignment;
+    private @SuperRubySpan.Alignment int mFuriganaAlignment;
+    private @Nullable FuriganaDecorator mFuriganaDecorator;
+
+    // aRelativeSize is the size of furigana relative to their text
+    public FuriganaOptions(final float aRelativeSize) {
+        mRelativeSize = aRelativeSize;
+
+        mRubyVisibility = null;
+        mKnownKanji = null;
+        mSpannifyText = true;
+        mAlignment = SuperRubySpan.Alignment.JIS;
+        mFuriganaAlignment = SuperRubySpan.Alignment.JIS;
+        mFuriganaDecorator = null;
+    }
+
+    public FuriganaOptions(final @NonNull FuriganaOptions aFuriganaOptions) {
+        mRelativeSize = aFuriganaOptions.mRelativeSize;
+
+        mRubyVisibility = aFuriganaOptions.mRubyVisibility;
+        mKnownKanji = aFuriganaOptions.mKnownKanji;
+        mSpannifyText = aFuriganaOptions.mSpannifyText;
+        mAlignment = aFuriganaOptions.mAlignment;
+        mFuriganaAlignment = aFuriganaOptions.mFuriganaAlignment;
+        mFuriganaDecorator = aFuriganaOptions.mFuriganaDecorator;
+    }
+
+    public float getRelativeSize() {
+        return mRelativeSize;
+    }
+
+    // Furigana of the produced spans are shown or hidden together
+    // through aRubyVisibility, without converting the text again.
+
+    public void setRubyVisibility(final @Nullable RubyVisibility aRubyVisibility) {
+        mRubyVisibility = aRubyVisibility;
+    }
+
+    public @Nullable RubyVisibility getRubyVisibility() {
+        return mRubyVisibility;
+    }
+
+    // Annotations of which all kanji are in aKnownKanji are converted
+    // as plain text, without creating a ruby span.
+
+    public void setKnownKanji(final @Nullable KnownKanji aKnownKanji) {
+        mKnownKanji = aKnownKanji;
+    }
+
+    public @Nullable KnownKanji getKnownKanji() {
+        return mKnownKanji;
+    }
+
+    // When false, only ruby spans are set, text outside of annotations
+    // being left as is: to be displayed in a RubyTextView, which breaks
+    // lines itself.
+
+    public void setSpannifyText(final boolean aSpannifyText) {
+        mSpannifyText = aSpannifyText;
+    }
+
+    public boolean getSpannifyText() {
+        return mSpannifyText;
+    }
+
+    public void setAlignment(final @SuperRubySpan.Alignment int aAlignment) {
+        mAlignment = aAlignment;
+    }
+
+    public @SuperRubySpan.Alignment int getAlignment() {
+        return mAlignment;
+    }
+
+    public void setFuriganaAlignment(final @SuperRubySpan.Alignment int aFuriganaAlignment) {
+        mFuriganaAlignment = aFuriganaAlignment;
+    }
+
+    public @SuperRubySpan.Alignment int getFuriganaAlignment() {
+        return mFuriganaAlignment;
+    }
+
+    public void setFuriganaDecorator(final @Nullable FuriganaDecorator aFuriganaDecorator) {
+        mFuriganaDecorator = aFuriganaDecorator;
+    }
+
+    public @Nullable FuriganaDecorator getFuriganaDecorator() {
+        return mFuriganaDecorator;
+    }
+}
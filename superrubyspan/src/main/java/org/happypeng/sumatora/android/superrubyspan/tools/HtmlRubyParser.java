@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// Parses the text of HTML or XHTML documents such as EPUB chapters,
+// turning <ruby> elements into annotations. Both <ruby>漢字<rt>かんじ</rt></ruby>
+// and <ruby><rb>漢</rb><rt>かん</rt><rb>字</rb><rt>じ</rt></ruby> are supported,
+// and <rp> fallbacks are skipped. Annotations longer than
+// MAX_ANNOTATION_LENGTH are kept as text, their base followed by their
+// reading, as shown by browsers without ruby support.
+//
+// Other markup is dropped: block level closing tags and <br> become line
+// breaks, whitespace runs are collapsed to a single space, the contents
+// of <head>, <script> and <style> are skipped, and character references
+// are decoded.
+
+public class HtmlRubyParser extends AbstractRubyPullParser {
+    private static final int MAX_TAG_LENGTH = 1024;
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private final StringBuilder mTag;
+    private final StringBuilder mTagName;
+    private final StringBuilder mEntity;
+    private final StringBuilder mBase;
+    private final StringBuilder mReadingBuffer;
+
+    private boolean mInRuby;
+    private boolean mInReading;
+    private boolean mInFallback;
+    private boolean mAnnotationAsText;
+    private String mSkippedElement;
+    private boolean mPendingSpace;
+
+    public HtmlRubyParser(final @NonNull Reader aReader) {
+        super(aReader);
+
+        mTag = new StringBuilder();
+        mTagName = new StringBuilder();
+        mEntity = new StringBuilder();
+        mBase = new StringBuilder();
+        mReadingBuffer = new StringBuilder();
+
+        mInRuby = false;
+        mInReading = false;
+        mInFallback = false;
+        mAnnotationAsText = false;
+        mSkippedElement = null;
+        mPendingSpace = false;
+    }
+
+    private static boolean isLineBreakElement(final @NonNull String aName) {
+        switch (aName) {
+            case "p":
+            case "div":
+            case "li":
+            case "tr":
+            case "h1":
+            case "h2":
+            case "h3":
+            case "h4":
+            case "h5":
+            case "h6":
+            case "blockquote":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isSkippedElement(final @NonNull String aName) {
+        return aName.equals("head") || aName.equals("script") || aName.equals("style");
+    }
+
+    private void readTag() throws IOException {
+        mTag.setLength(0);
+
+        int c;
+
+        while ((c = read()) != -1 && c != '>') {
+            if (mTag.length() < MAX_TAG_LENGTH) {
+                mTag.append((char) c);
+            }
+
+            // Comments may contain >
+            if (mTag.length() == 3 && mTag.charAt(0) == '!' && mTag.charAt(1) == '-' && mTag.charAt(2) == '-') {
+                int dashes = 0;
+
+                while ((c = read()) != -1 && !(c == '>' && dashes >= 2)) {
+                    dashes = c == '-' ? dashes + 1 : 0;
+                }
+
+                mTag.setLength(0);
+
+                return;
+            }
+        }
+    }
+
+    // Returns the lower case name of the tag just read, prefixed with /
+    // for closing tags
+    private @NonNull String getTagName() {
+        mTagName.setLength(0);
+
+        for (int i = 0; i < mTag.length(); i++) {
+            final char c = mTag.charAt(i);
+
+            if (Character.isWhitespace(c) || (c == '/' && i > 0)) {
+                break;
+            }
+
+            mTagName.append(Character.toLowerCase(c));
+        }
+
+        return mTagName.toString();
+    }
+
+    // Value of the numeric reference or entity named aName, or -1 if it
+    // is not recognized
+    private static int decodeEntity(final @NonNull String aName) {
+        if (aName.startsWith("#")) {
+            final boolean hexadecimal = aName.startsWith("#x") || aName.startsWith("#X");
+            final String digits = aName.substring(hexadecimal ? 2 : 1);
+
+            if (digits.length() == 0) {
+                return -1;
+            }
+
+            long value = 0;
+
+            for (int i = 0; i < digits.length(); i++) {
+                final int digit = Character.digit(digits.charAt(i), hexadecimal ? 16 : 10);
+
+                if (digit < 0) {
+                    return -1;
+                }
+
+                value = Math.min(value * (hexadecimal ? 16 : 10) + digit, Integer.MAX_VALUE);
+            }
+
+            // Invalid code points are replaced, as browsers do
+            if (value == 0 || value > Character.MAX_CODE_POINT ||
+                    (value >= Character.MIN_SURROGATE && value <= Character.MAX_SURROGATE)) {
+                return 0xFFFD;
+            }
+
+            return (int) value;
+        }
+
+        switch (aName) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            case "nbsp":
+                return 0xA0;
+            default:
+                return -1;
+        }
+    }
+
+    // Decodes the reference following &, unknown ones such as the
+    // ampersand of "AT&T" being kept as text
+    private void readEntity() throws IOException {
+        mEntity.setLength(0);
+
+        while (mEntity.length() < MAX_ENTITY_LENGTH) {
+            final int c = peek();
+
+            if (c == -1 || !(Character.isLetterOrDigit(c) || c == '#')) {
+                break;
+            }
+
+            mEntity.append((char) read());
+        }
+
+        final int codePoint = decodeEntity(mEntity.toString());
+
+        if (codePoint != -1) {
+            if (peek() == ';') {
+                read();
+            }
+
+            appendText(codePoint);
+
+            return;
+        }
+
+        appendText('&');
+
+        for (int i = 0; i < mEntity.length(); i++) {
+            appendText(mEntity.charAt(i));
+        }
+    }
+
+    // Whitespace runs are collapsed in annotations as well, spaces at the
+    // ends of the base and reading being trimmed when emitting them
+    private void appendText(final int aCodePoint) {
+        if (mInFallback) {
+            return;
+        }
+
+        if (mInRuby && !mAnnotationAsText) {
+            final StringBuilder target = mInReading ? mReadingBuffer : mBase;
+
+            if (Character.isWhitespace(aCodePoint)) {
+                if (target.length() > 0 && target.charAt(target.length() - 1) != ' ') {
+                    target.append(' ');
+                }
+
+                return;
+            }
+
+            if (target.length() + Character.charCount(aCodePoint) <= MAX_ANNOTATION_LENGTH) {
+                target.appendCodePoint(aCodePoint);
+
+                return;
+            }
+
+            // Too long for an annotation: kept as text until it ends
+            mAnnotationAsText = true;
+
+            appendCollectedText(mBase);
+            appendCollectedText(mReadingBuffer);
+        }
+
+        appendPlainText(aCodePoint);
+    }
+
+    private void appendCollectedText(final @NonNull StringBuilder aText) {
+        for (int i = 0; i < aText.length(); i++) {
+            appendPlainText(aText.charAt(i));
+        }
+
+        aText.setLength(0);
+    }
+
+    private void appendPlainText(final int aCodePoint) {
+        if (Character.isWhitespace(aCodePoint)) {
+            mPendingSpace = true;
+
+            return;
+        }
+
+        if (mPendingSpace && mPendingText.length() > 0 &&
+                mPendingText.charAt(mPendingText.length() - 1) != '\n') {
+            mPendingText.append(' ');
+        }
+
+        mPendingSpace = false;
+        mPendingText.appendCodePoint(aCodePoint);
+    }
+
+    private void appendLineBreak() {
+        if (!mInRuby) {
+            mPendingText.append('\n');
+        }
+
+        mPendingSpace = false;
+    }
+
+    private static void trimTrailingSpace(final @NonNull StringBuilder aText) {
+        if (aText.length() > 0 && aText.charAt(aText.length() - 1) == ' ') {
+            aText.setLength(aText.length() - 1);
+        }
+    }
+
+    // Emits the base and reading collected so far as an annotation, or
+    // the base alone as text if it has no reading.
+    private boolean emitAnnotation() {
+        boolean emitted = false;
+
+        mAnnotationAsText = false;
+
+        trimTrailingSpace(mBase);
+        trimTrailingSpace(mReadingBuffer);
+
+        if (mBase.length() > 0) {
+            final int baseStart = mPendingText.length();
+
+            mPendingText.append(mBase);
+
+            if (mReadingBuffer.length() > 0) {
+                emitRuby(baseStart, mReadingBuffer);
+
+                emitted = true;
+            }
+        }
+
+        mBase.setLength(0);
+        mReadingBuffer.setLength(0);
+
+        return emitted;
+    }
+
+    private boolean handleTag(final @NonNull String aName) {
+        if (mSkippedElement != null) {
+            if (aName.equals("/" + mSkippedElement)) {
+                mSkippedElement = null;
+            }
+
+            return false;
+        }
+
+        if (isSkippedElement(aName)) {
+            mSkippedElement = aName;
+
+            return false;
+        }
+
+        switch (aName) {
+            case "ruby":
+                mInRuby = true;
+                mInReading = false;
+
+                if (mPendingSpace && mPendingText.length() > 0 &&
+                        mPendingText.charAt(mPendingText.length() - 1) != '\n') {
+                    mPendingText.append(' ');
+                }
+
+                mPendingSpace = false;
+
+                return false;
+            case "/ruby":
+                mInRuby = false;
+                mInReading = false;
+                mInFallback = false;
+
+                return emitAnnotation();
+            case "rb":
+                // A new base after a complete annotation
+                if (mInRuby && mReadingBuffer.length() > 0) {
+                    return emitAnnotation();
+                }
+
+                return false;
+            case "rt":
+                mInReading = mInRuby;
+
+                return false;
+            case "/rt":
+                mInReading = false;
+
+                // A following base may come without <rb>
+                return mInRuby && emitAnnotation();
+            case "rp":
+                mInFallback = mInRuby;
+
+                return false;
+            case "/rp":
+                mInFallback = false;
+
+                return false;
+            case "br":
+                appendLineBreak();
+
+                return false;
+            default:
+                if (aName.startsWith("/") && isLineBreakElement(aName.substring(1))) {
+                    appendLineBreak();
+                }
+
+                return false;
+        }
+    }
+
+    private boolean flushPendingText() {
+        if (mPendingText.length() < CHUNK_LENGTH) {
+            return false;
+        }
+
+        return emitText(mPendingText.length());
+    }
+
+    @Override
+    boolean parse() throws IOException {
+        int c;
+
+        while ((c = read()) != -1) {
+            if (c == '<') {
+                readTag();
+
+                if (handleTag(getTagName())) {
+                    return true;
+                }
+            } else if (mSkippedElement == null) {
+                if (c == '&') {
+                    readEntity();
+                } else if (Character.isHighSurrogate((char) c) && Character.isLowSurrogate((char) peek())) {
+                    appendText(Character.toCodePoint((char) c, (char) read()));
+                } else {
+                    appendText(c);
+                }
+            }
+
+            if (flushPendingText()) {
+                return true;
+            }
+        }
+
+        return emitAnnotation();
+    }
+}
@@ -24,14 +24,18 @@ import android.text.style.RelativeSizeSpan;
 import org.happypeng.sumatora.android.superrubyspan.SuperReplacementSpan;
 import org.happypeng.sumatora.android.superrubyspan.SuperRubySpan;
 
+import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public abstract class JapaneseText {
-    private final static Pattern m_examplePattern;
+    final static Pattern m_examplePattern;
+
+    // Annotations contain no brace, so that an unclosed one such as in
+    // "{a;b{c;d}" is text, as when RubyMarkupWatcher converts edits.
 
     static {
-        m_examplePattern = Pattern.compile("\\{([^\\};]+);([^\\};]+)\\}");
+        m_examplePattern = Pattern.compile("\\{([^\\{\\};]+);([^\\{\\};]+)\\}");
     }
 
     public static void spannify(final SpannableStringBuilder aSpannableStringBuilder,
@@ -54,41 +58,110 @@ public abstract class JapaneseText {
         }
     }
 
-    public static void spannifyWithFurigana(final SpannableStringBuilder aSpannableStringBuilder,
-                                             final String aString,
-                                             float aRelativeSize) {
+    // Converts {text;furigana} annotations of aString to ruby spans,
+    // appending the result to aSpannableStringBuilder.
+
+    public static void convertWithFurigana(final SpannableStringBuilder aSpannableStringBuilder,
+                                           final String aString,
+                                           final FuriganaOptions aFuriganaOptions) {
         final Matcher matcher = m_examplePattern.matcher(aString);
+        final boolean spannifyText = aFuriganaOptions.getSpannifyText();
         int previousMatchEnd = 0;
 
         while (matcher.find()) {
             final int matchStart = matcher.start();
 
             if (matchStart > previousMatchEnd) {
-                spannify(aSpannableStringBuilder, aString.substring(previousMatchEnd, matchStart));
+                appendText(aSpannableStringBuilder, aString.substring(previousMatchEnd, matchStart), spannifyText);
             }
 
             final String text = matcher.group(1);
             final String furigana = matcher.group(2);
-            final int spanStart = aSpannableStringBuilder.length();
 
             if (text != null) {
-                aSpannableStringBuilder.append(text);
+                appendAnnotation(aSpannableStringBuilder, text, furigana, aFuriganaOptions);
+            }
+
+            previousMatchEnd = matcher.end();
+        }
 
-                if (furigana != null) {
-                    final SpannableString furiganaSpannable = new SpannableString(furigana);
-                    furiganaSpannable.setSpan(new RelativeSizeSpan(aRelativeSize), 0, furiganaSpannable.length(),
-                            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        if (previousMatchEnd < aString.length()) {
+            appendText(aSpannableStringBuilder, aString.substring(previousMatchEnd), spannifyText);
+        }
+    }
+
+    // Converts the whole input of a parser, such as AozoraRubyParser or
+    // HtmlRubyParser, in a single streaming pass.
+
+    public static void convertWithFurigana(final SpannableStringBuilder aSpannableStringBuilder,
+                                           final RubyPullParser aRubyPullParser,
+                                           final FuriganaOptions aFuriganaOptions) throws IOException {
+        final boolean spannifyText = aFuriganaOptions.getSpannifyText();
+        int eventType;
+
+        while ((eventType = aRubyPullParser.next()) != RubyPullParser.EventType.END_DOCUMENT) {
+            if (eventType == RubyPullParser.EventType.RUBY) {
+                final CharSequence reading = aRubyPullParser.getReading();
 
-                    aSpannableStringBuilder.setSpan(new SuperRubySpan(furiganaSpannable, SuperRubySpan.Alignment.JIS, SuperRubySpan.Alignment.JIS),
-                            spanStart, spanStart + text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
+                appendAnnotation(aSpannableStringBuilder, aRubyPullParser.getText(),
+                        reading != null ? reading.toString() : null, aFuriganaOptions);
+            } else {
+                appendText(aSpannableStringBuilder, aRubyPullParser.getText().toString(), spannifyText);
             }
+        }
+    }
 
-            previousMatchEnd = matcher.end();
+    private static void appendAnnotation(final SpannableStringBuilder aSpannableStringBuilder,
+                                         final CharSequence aText,
+                                         final String aFurigana,
+                                         final FuriganaOptions aFuriganaOptions) {
+        final KnownKanji knownKanji = aFuriganaOptions.getKnownKanji();
+
+        if (knownKanji != null && knownKanji.isKnown(aText)) {
+            appendText(aSpannableStringBuilder, aText.toString(), aFuriganaOptions.getSpannifyText());
+
+            return;
         }
 
-        if (previousMatchEnd < aString.length() - 1) {
-            spannify(aSpannableStringBuilder, aString.substring(previousMatchEnd, aString.length() - 1));
+        final int spanStart = aSpannableStringBuilder.length();
+
+        aSpannableStringBuilder.append(aText);
+
+        if (aFurigana != null) {
+            aSpannableStringBuilder.setSpan(createRubySpan(aFurigana, aFuriganaOptions),
+                    spanStart, spanStart + aText.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
         }
     }
+
+    static SuperRubySpan createRubySpan(final String aFurigana,
+                                        final FuriganaOptions aFuriganaOptions) {
+        final SpannableString furiganaSpannable = new SpannableString(aFurigana);
+        furiganaSpannable.setSpan(new RelativeSizeSpan(aFuriganaOptions.getRelativeSize()), 0, furiganaSpannable.length(),
+                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        final FuriganaOptions.FuriganaDecorator furiganaDecorator = aFuriganaOptions.getFuriganaDecorator();
+
+        if (furiganaDecorator != null) {
+            furiganaDecorator.decorate(furiganaSpannable);
+        }
+
+        return new SuperRubySpan(furiganaSpannable, aFuriganaOptions.getAlignment(),
+                aFuriganaOptions.getFuriganaAlignment(), aFuriganaOptions.getRubyVisibility());
+    }
+
+    private static void appendText(final SpannableStringBuilder aSpannableStringBuilder,
+                                   final String aString,
+                                   boolean aSpannifyText) {
+        if (aSpannifyText) {
+            spannify(aSpannableStringBuilder, aString);
+        } else {
+            aSpannableStringBuilder.append(aString);
+        }
+    }
+
+    public static void spannifyWithFurigana(final SpannableStringBuilder aSpannableStringBuilder,
+                                             final String aString,
+                                             float aRelativeSize) {
+        convertWithFurigana(aSpannableStringBuilder, aString, new FuriganaOptions(aRelativeSize));
+    }
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.SpannedString;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.happypeng.sumatora.android.superrubyspan.RubyVisibility;
+import org.happypeng.sumatora.android.superrubyspan.SuperRubySpan;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Cache of the results of JapaneseText conversions, keyed by their
+// markup source and options, evicted in least recently used order once
+// their count or their approximate retained size exceeds its limits.
+//
+// Results are immutable and shared: binding the same markup again, for
+// instance when scrolling back through a list, returns the spans
+// already measured instead of converting it again. Spans being shared,
+// a RubyVisibility, RubyHighlighter or RubyScaling attached to a result
+// applies to all the views displaying it.
+
+public class JapaneseTextCache {
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private static final int ENTRY_BYTES = 96;
+    private static final int SPAN_BYTES = 160;
+
+    private static class Key {
+        final String source;
+        final float relativeSize;
+        final int alignment;
+        final int furiganaAlignment;
+        final boolean spannifyText;
+
+        Key(final @NonNull String aSource, final float aRelativeSize,
+            final int aAlignment, final int aFuriganaAlignment, final boolean aSpannifyText) {
+            source = aSource;
+            relativeSize = aRelativeSize;
+            alignment = aAlignment;
+            furiganaAlignment = aFuriganaAlignment;
+            spannifyText = aSpannifyText;
+        }
+
+        @Override
+        public boolean equals(final Object aObject) {
+            if (this == aObject) {
+                return true;
+            }
+
+            if (!(aObject instanceof Key)) {
+                return false;
+            }
+
+            final Key key = (Key) aObject;
+
+            return Float.compare(relativeSize, key.relativeSize) == 0 &&
+                    alignment == key.alignment &&
+                    furiganaAlignment == key.furiganaAlignment &&
+                    spannifyText == key.spannifyText &&
+                    source.equals(key.source);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = source.hashCode();
+
+            result = 31 * result + Float.floatToIntBits(relativeSize);
+            result = 31 * result + alignment;
+            result = 31 * result + furiganaAlignment;
+            result = 31 * result + (spannifyText ? 1 : 0);
+
+            return result;
+        }
+    }
+
+    private static class Entry {
+        final Spanned value;
+        final int bytes;
+
+        Entry(final @NonNull Spanned aValue, final int aBytes) {
+            value = aValue;
+            bytes = aBytes;
+        }
+    }
+
+    private final LinkedHashMap<Key, Entry> mEntries;
+    private final @Nullable RubyVisibility mRubyVisibility;
+
+    private int mMaxEntries;
+    private long mMaxBytes;
+    private long mSizeBytes;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    // Ruby spans of all the results are created with aRubyVisibility
+    public JapaneseTextCache(final int aMaxEntries, final long aMaxBytes,
+                             final @Nullable RubyVisibility aRubyVisibility) {
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mRubyVisibility = aRubyVisibility;
+        mMaxEntries = aMaxEntries;
+        mMaxBytes = aMaxBytes;
+    }
+
+    public JapaneseTextCache(final int aMaxEntries, final long aMaxBytes) {
+        this(aMaxEntries, aMaxBytes, null);
+    }
+
+    public JapaneseTextCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, null);
+    }
+
+    static int estimateBytes(final @NonNull String aSource, final @NonNull Spanned aValue) {
+        return ENTRY_BYTES + 2 * aSource.length() + 2 * aValue.length() +
+                SPAN_BYTES * aValue.getSpans(0, aValue.length(), Object.class).length;
+    }
+
+    public @NonNull Spanned spannifyWithFurigana(final @NonNull String aString,
+                                                 final float aRelativeSize) {
+        return get(aString, aRelativeSize, SuperRubySpan.Alignment.JIS, SuperRubySpan.Alignment.JIS, true);
+    }
+
+    public @NonNull Spanned spannifyWithFurigana(final @NonNull String aString,
+                                                 final float aRelativeSize,
+                                                 final @SuperRubySpan.Alignment int aAlignment,
+                                                 final @SuperRubySpan.Alignment int aFuriganaAlignment) {
+        return get(aString, aRelativeSize, aAlignment, aFuriganaAlignment, true);
+    }
+
+    // See FuriganaOptions.setSpannifyText()
+    public @NonNull Spanned rubifyWithFurigana(final @NonNull String aString,
+                                               final float aRelativeSize) {
+        return get(aString, aRelativeSize, SuperRubySpan.Alignment.JIS, SuperRubySpan.Alignment.JIS, false);
+    }
+
+    public @NonNull Spanned rubifyWithFurigana(final @NonNull String aString,
+                                               final float aRelativeSize,
+                                               final @SuperRubySpan.Alignment int aAlignment,
+                                               final @SuperRubySpan.Alignment int aFuriganaAlignment) {
+        return get(aString, aRelativeSize, aAlignment, aFuriganaAlignment, false);
+    }
+
+    private @NonNull Spanned get(final @NonNull String aString,
+                                 final float aRelativeSize,
+                                 final @SuperRubySpan.Alignment int aAlignment,
+                                 final @SuperRubySpan.Alignment int aFuriganaAlignment,
+                                 final boolean aSpannifyText) {
+        final Key key = new Key(aString, aRelativeSize, aAlignment, aFuriganaAlignment, aSpannifyText);
+
+        synchronized (this) {
+            final Entry entry = mEntries.get(key);
+
+            if (entry != null) {
+                mHitCount++;
+
+                return entry.value;
+            }
+
+            mMissCount++;
+        }
+
+        // Converted outside of the lock, concurrent conversions of the
+        // same source both being valid results.
+
+        final SpannableStringBuilder spannableStringBuilder = new SpannableStringBuilder();
+
+        final FuriganaOptions furiganaOptions = new FuriganaOptions(aRelativeSize);
+
+        furiganaOptions.setRubyVisibility(mRubyVisibility);
+        furiganaOptions.setSpannifyText(aSpannifyText);
+        furiganaOptions.setAlignment(aAlignment);
+        furiganaOptions.setFuriganaAlignment(aFuriganaAlignment);
+
+        JapaneseText.convertWithFurigana(spannableStringBuilder, aString, furiganaOptions);
+
+        final Spanned value = new SpannedString(spannableStringBuilder);
+
+        put(key, new Entry(value, estimateBytes(aString, value)));
+
+        return value;
+    }
+
+    private synchronized void put(final @NonNull Key aKey, final @NonNull Entry aEntry) {
+        final Entry previousEntry = mEntries.put(aKey, aEntry);
+
+        if (previousEntry != null) {
+            mSizeBytes -= previousEntry.bytes;
+        }
+
+        mSizeBytes += aEntry.bytes;
+
+        trimToSize(mMaxEntries, mMaxBytes);
+    }
+
+    private void trimToSize(final int aMaxEntries, final long aMaxBytes) {
+        final Iterator<Map.Entry<Key, Entry>> entryIterator = mEntries.entrySet().iterator();
+
+        while ((mEntries.size() > aMaxEntries || mSizeBytes > aMaxBytes) && entryIterator.hasNext()) {
+            mSizeBytes -= entryIterator.next().getValue().bytes;
+            entryIterator.remove();
+
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized void setMaxEntries(final int aMaxEntries) {
+        mMaxEntries = aMaxEntries;
+
+        trimToSize(mMaxEntries, mMaxBytes);
+    }
+
+    public synchronized int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    public synchronized void setMaxBytes(final long aMaxBytes) {
+        mMaxBytes = aMaxBytes;
+
+        trimToSize(mMaxEntries, mMaxBytes);
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mSizeBytes = 0;
+    }
+
+    public synchronized void resetStatistics() {
+        mHitCount = 0;
+        mMissCount = 0;
+        mEvictionCount = 0;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+// Japanese line breaking rules (kinsoku shori), following the usual
+// subset of JIS X 4051: closing brackets, punctuation and small kana
+// may not start a line, and opening brackets may not end one.
+
+public abstract class Kinsoku {
+    private final static String m_lineStartProhibited =
+            "、。，．・：；？！゛゜ヽヾゝゞ々〻ー‐゠–〜～" +
+            "）］｝」』】〕〉》〙〗〟’”｠»" +
+            "ぁぃぅぇぉっゃゅょゎゕゖァィゥェォッャュョヮヵヶ" +
+            "ㇰㇱㇲㇳㇴㇵㇶㇷㇸㇹㇺㇻㇼㇽㇾㇿ" +
+            "!),.:;?]}";
+
+    private final static String m_lineEndProhibited =
+            "（［｛「『【〔〈《〘〖〝‘“｟«([{";
+
+    public static boolean isLineStartProhibited(final int aCodePoint) {
+        return m_lineStartProhibited.indexOf(aCodePoint) >= 0;
+    }
+
+    public static boolean isLineEndProhibited(final int aCodePoint) {
+        return m_lineEndProhibited.indexOf(aCodePoint) >= 0;
+    }
+
+    // Latin words and numbers are not broken
+    private static boolean isWordCodePoint(final int aCodePoint) {
+        return aCodePoint < 0x2E80 && Character.isLetterOrDigit(aCodePoint);
+    }
+
+    public static boolean canBreakBetween(final int aPreviousCodePoint, final int aNextCodePoint) {
+        if (isLineEndProhibited(aPreviousCodePoint) || isLineStartProhibited(aNextCodePoint)) {
+            return false;
+        }
+
+        return !isWordCodePoint(aPreviousCodePoint) || !isWordCodePoint(aNextCodePoint);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// Set of kanji known by a reader, as a bitset over the CJK Unified
+// Ideographs block (U+4E00 to U+9FFF, 2.6 KB). Used by JapaneseText
+// to leave annotations of known kanji as plain text.
+
+public class KnownKanji {
+    private static final int FIRST_KANJI = 0x4E00;
+    private static final int LAST_KANJI = 0x9FFF;
+
+    private final long[] mBits;
+
+    public KnownKanji() {
+        mBits = new long[(LAST_KANJI - FIRST_KANJI + 64) / 64];
+    }
+
+    public static boolean isKanji(final int aCodePoint) {
+        return aCodePoint >= FIRST_KANJI && aCodePoint <= LAST_KANJI;
+    }
+
+    // Adds every kanji of a list in any format, such as one kanji per
+    // line or a JLPT or Jōyō level list: other characters are ignored.
+
+    public static @NonNull KnownKanji load(final @NonNull Reader aReader) throws IOException {
+        final KnownKanji knownKanji = new KnownKanji();
+        final char[] buffer = new char[4096];
+        int length;
+
+        while ((length = aReader.read(buffer)) >= 0) {
+            for (int i = 0; i < length; i++) {
+                knownKanji.add(buffer[i]);
+            }
+        }
+
+        return knownKanji;
+    }
+
+    public void add(final int aCodePoint) {
+        if (isKanji(aCodePoint)) {
+            final int index = aCodePoint - FIRST_KANJI;
+
+            mBits[index >>> 6] |= 1L << index;
+        }
+    }
+
+    public void addAll(final @NonNull CharSequence aKanji) {
+        for (int i = 0; i < aKanji.length(); i++) {
+            add(aKanji.charAt(i));
+        }
+    }
+
+    public void remove(final int aCodePoint) {
+        if (isKanji(aCodePoint)) {
+            final int index = aCodePoint - FIRST_KANJI;
+
+            mBits[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    public boolean contains(final int aCodePoint) {
+        if (!isKanji(aCodePoint)) {
+            return false;
+        }
+
+        final int index = aCodePoint - FIRST_KANJI;
+
+        return (mBits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (long bits : mBits) {
+            size += Long.bitCount(bits);
+        }
+
+        return size;
+    }
+
+    // Whether aText needs no reading: it has kanji, all known. Other
+    // ideographs, outside of the block, are never known; kana and the
+    // iteration mark 々 do not need to be.
+
+    public boolean isKnown(final @NonNull CharSequence aText) {
+        boolean hasKanji = false;
+        int offset = 0;
+
+        while (offset < aText.length()) {
+            final int codePoint = Character.codePointAt(aText, offset);
+
+            if (isKanji(codePoint)) {
+                if (!contains(codePoint)) {
+                    return false;
+                }
+
+                hasKanji = true;
+            } else if (codePoint != '々' && Character.isIdeographic(codePoint)) {
+                return false;
+            }
+
+            offset += Character.charCount(codePoint);
+        }
+
+        return hasKanji;
+    }
+}
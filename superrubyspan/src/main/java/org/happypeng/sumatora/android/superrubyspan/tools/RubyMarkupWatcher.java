@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.Editable;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.ReplacementSpan;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.happypeng.sumatora.android.superrubyspan.RubyVisibility;
+import org.happypeng.sumatora.android.superrubyspan.SuperReplacementSpan;
+
+import java.util.regex.Matcher;
+
+// Renders {text;furigana} markup as ruby while it is being edited, such
+// as in an EditText: the markup stays in the text, braces and furigana
+// being hidden by zero width spans. After each edit, only the markup
+// enclosing the change, or the changed characters themselves outside
+// of markup, are converted again, their spans being replaced in place:
+// the spans of the rest of the text keep their measurements.
+
+public class RubyMarkupWatcher implements TextWatcher {
+    // Markup longer than this is not looked for around an edit
+    private static final int MAX_MARKUP_LENGTH = 256;
+
+    // Hides markup characters
+    static class MarkupSpan extends ReplacementSpan {
+        @Override
+        public int getSize(@NonNull Paint paint, CharSequence text, int start, int end, @Nullable Paint.FontMetricsInt fm) {
+            if (fm != null) {
+                paint.getFontMetricsInt(fm);
+            }
+
+            return 0;
+        }
+
+        @Override
+        public void draw(@NonNull Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, @NonNull Paint paint) {
+        }
+    }
+
+    private final FuriganaOptions mFuriganaOptions;
+
+    private int mChangeStart;
+    private int mChangeEnd;
+
+    public RubyMarkupWatcher(float aRelativeSize, boolean aSpannifyText,
+                             final @Nullable RubyVisibility aRubyVisibility) {
+        mFuriganaOptions = new FuriganaOptions(aRelativeSize);
+        mFuriganaOptions.setSpannifyText(aSpannifyText);
+        mFuriganaOptions.setRubyVisibility(aRubyVisibility);
+
+        mChangeStart = -1;
+        mChangeEnd = -1;
+    }
+
+    public RubyMarkupWatcher(float aRelativeSize) {
+        this(aRelativeSize, true, null);
+    }
+
+    // Converts the whole text, before edits are watched
+    public void convert(final @NonNull Spannable aText) {
+        convert(aText, 0, aText.length());
+    }
+
+    @Override
+    public void beforeTextChanged(final CharSequence aText, final int aStart, final int aCount, final int aAfter) {
+    }
+
+    @Override
+    public void onTextChanged(final CharSequence aText, final int aStart, final int aBefore, final int aCount) {
+        if (mChangeStart < 0) {
+            mChangeStart = aStart;
+            mChangeEnd = aStart + aCount;
+        } else {
+            mChangeStart = Math.min(mChangeStart, aStart);
+            mChangeEnd = Math.max(mChangeEnd + aCount - aBefore, aStart + aCount);
+        }
+    }
+
+    @Override
+    public void afterTextChanged(final Editable aEditable) {
+        if (mChangeStart < 0) {
+            return;
+        }
+
+        final int changeStart = Math.min(mChangeStart, aEditable.length());
+        final int changeEnd = Math.min(Math.max(mChangeEnd, changeStart), aEditable.length());
+
+        mChangeStart = -1;
+        mChangeEnd = -1;
+
+        convert(aEditable, findRegionStart(aEditable, changeStart), findRegionEnd(aEditable, changeEnd));
+    }
+
+    // At the opening brace of the markup enclosing aPosition, or at
+    // aPosition when it is not in markup.
+
+    private static int findRegionStart(final @NonNull CharSequence aText, final int aPosition) {
+        final int limit = Math.max(0, aPosition - MAX_MARKUP_LENGTH);
+
+        for (int i = aPosition - 1; i >= limit; i--) {
+            final char c = aText.charAt(i);
+
+            if (c == '}') {
+                return aPosition;
+            }
+
+            if (c == '{') {
+                return i;
+            }
+        }
+
+        return aPosition;
+    }
+
+    private static int findRegionEnd(final @NonNull CharSequence aText, final int aPosition) {
+        final int limit = Math.min(aText.length(), aPosition + MAX_MARKUP_LENGTH);
+
+        for (int i = aPosition; i < limit; i++) {
+            final char c = aText.charAt(i);
+
+            if (c == '{') {
+                return aPosition;
+            }
+
+            if (c == '}') {
+                return i + 1;
+            }
+        }
+
+        return aPosition;
+    }
+
+    private static boolean isConverterSpan(final @NonNull Object aSpan) {
+        return aSpan instanceof SuperReplacementSpan || aSpan instanceof MarkupSpan;
+    }
+
+    // Converter spans overlapping the region, or emptied by a deletion,
+    // spans only touching its ends being left as is.
+
+    private static boolean isCrossingSpan(final @NonNull Spannable aText, final @NonNull Object aSpan,
+                                          final int aStart, final int aEnd) {
+        final int spanStart = aText.getSpanStart(aSpan);
+        final int spanEnd = aText.getSpanEnd(aSpan);
+
+        return isConverterSpan(aSpan) &&
+                ((spanStart < aEnd && spanEnd > aStart) || spanStart == spanEnd);
+    }
+
+    private void convert(final @NonNull Spannable aText, int aStart, int aEnd) {
+        // Spans crossing the region, such as the ones extended by an
+        // insertion, are converted again with it.
+
+        for (Object span : aText.getSpans(aStart, aEnd, Object.class)) {
+            if (isCrossingSpan(aText, span, aStart, aEnd)) {
+                aStart = Math.min(aStart, aText.getSpanStart(span));
+                aEnd = Math.max(aEnd, aText.getSpanEnd(span));
+            }
+        }
+
+        for (Object span : aText.getSpans(aStart, aEnd, Object.class)) {
+            if (isCrossingSpan(aText, span, aStart, aEnd)) {
+                aText.removeSpan(span);
+            }
+        }
+
+        final Matcher matcher = JapaneseText.m_examplePattern.matcher(aText);
+        int previousMatchEnd = aStart;
+
+        matcher.region(aStart, aEnd);
+
+        while (matcher.find()) {
+            spannify(aText, previousMatchEnd, matcher.start());
+
+            final int textStart = matcher.start(1);
+            final int textEnd = matcher.end(1);
+
+            setSpan(aText, new MarkupSpan(), matcher.start(), textStart);
+            setSpan(aText, JapaneseText.createRubySpan(matcher.group(2), mFuriganaOptions),
+                    textStart, textEnd);
+            setSpan(aText, new MarkupSpan(), textEnd, matcher.end());
+
+            previousMatchEnd = matcher.end();
+        }
+
+        spannify(aText, previousMatchEnd, aEnd);
+    }
+
+    private static void setSpan(final @NonNull Spannable aText, final @NonNull Object aSpan,
+                                final int aStart, final int aEnd) {
+        aText.setSpan(aSpan, aStart, aEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    private void spannify(final @NonNull Spannable aText, final int aStart, final int aEnd) {
+        if (!mFuriganaOptions.getSpannifyText()) {
+            return;
+        }
+
+        int offset = aStart;
+
+        while (offset < aEnd) {
+            final int nextOffset = Math.min(aEnd, offset + Character.charCount(Character.codePointAt(aText, offset)));
+
+            setSpan(aText, new SuperReplacementSpan(), offset, nextOffset);
+
+            offset = nextOffset;
+        }
+    }
+}
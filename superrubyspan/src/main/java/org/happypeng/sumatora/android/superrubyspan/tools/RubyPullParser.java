@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+// Pull parser of ruby annotated text: each call to next() returns either
+// a chunk of plain text or a ruby annotation, until the end of the input.
+// The returned character sequences are only valid until the next call.
+
+public interface RubyPullParser {
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({EventType.TEXT, EventType.RUBY, EventType.END_DOCUMENT})
+    @interface EventType {
+        int TEXT = 0;
+        int RUBY = 1;
+        int END_DOCUMENT = 2;
+    }
+
+    @EventType int next() throws IOException;
+
+    // Plain text for TEXT, base text for RUBY
+    @NonNull CharSequence getText();
+
+    // Reading for RUBY, null otherwise
+    @Nullable CharSequence getReading();
+}
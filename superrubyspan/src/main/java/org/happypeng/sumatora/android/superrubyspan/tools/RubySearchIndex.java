@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import android.text.Spanned;
+
+import androidx.annotation.NonNull;
+
+import org.happypeng.sumatora.android.superrubyspan.SuperRubySpan;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Search index over ruby annotated text, matching queries both on the
+// base text and on the text read with its furigana: "きょう" finds 今日,
+// and so does "きょうは" on 今日は. Katakana are folded to hiragana.
+//
+// Both versions of the text are stored one after the other, each of
+// their characters mapped to the range of the base text it comes from.
+// Queries look up the sorted bigrams of that storage, packed in longs
+// with their position, then compare the candidates.
+
+public class RubySearchIndex {
+    private static final char SEPARATOR = '\0';
+
+    private final char[] mChars;
+    private final int[] mBaseStarts;
+    private final int[] mBaseEnds;
+    private final long[] mBigrams;
+    private final int mBigramCount;
+
+    private int mLength;
+
+    public RubySearchIndex(final @NonNull Spanned aText) {
+        final SuperRubySpan[] rubySpans = getTopLevelRubySpans(aText);
+        int readingLength = aText.length();
+
+        for (SuperRubySpan rubySpan : rubySpans) {
+            readingLength += rubySpan.getFurigana().length() -
+                    (aText.getSpanEnd(rubySpan) - aText.getSpanStart(rubySpan));
+        }
+
+        final int capacity = aText.length() + readingLength + 2;
+
+        mChars = new char[capacity];
+        mBaseStarts = new int[capacity];
+        mBaseEnds = new int[capacity];
+        mLength = 0;
+
+        appendBase(aText, 0, aText.length());
+        append(SEPARATOR, aText.length(), aText.length());
+
+        int cursor = 0;
+
+        for (SuperRubySpan rubySpan : rubySpans) {
+            final int spanStart = aText.getSpanStart(rubySpan);
+            final int spanEnd = aText.getSpanEnd(rubySpan);
+            final CharSequence furigana = rubySpan.getFurigana();
+
+            appendBase(aText, cursor, spanStart);
+
+            for (int i = 0; i < furigana.length(); i++) {
+                append(furigana.charAt(i), spanStart, spanEnd);
+            }
+
+            cursor = spanEnd;
+        }
+
+        appendBase(aText, cursor, aText.length());
+        append(SEPARATOR, aText.length(), aText.length());
+
+        mBigrams = new long[mLength - 1];
+
+        int bigramCount = 0;
+
+        for (int position = 0; position < mLength - 1; position++) {
+            if (mChars[position] != SEPARATOR) {
+                mBigrams[bigramCount++] = getKey(mChars[position], mChars[position + 1], position);
+            }
+        }
+
+        Arrays.sort(mBigrams, 0, bigramCount);
+
+        mBigramCount = bigramCount;
+    }
+
+    // Ruby spans sorted by position, without the ones nested in others
+    private static @NonNull SuperRubySpan[] getTopLevelRubySpans(final @NonNull Spanned aText) {
+        final SuperRubySpan[] rubySpans = aText.getSpans(0, aText.length(), SuperRubySpan.class);
+
+        Arrays.sort(rubySpans, new Comparator<SuperRubySpan>() {
+            @Override
+            public int compare(final SuperRubySpan aFirst, final SuperRubySpan aSecond) {
+                final int startDifference = aText.getSpanStart(aFirst) - aText.getSpanStart(aSecond);
+
+                return startDifference != 0 ? startDifference :
+                        aText.getSpanEnd(aSecond) - aText.getSpanEnd(aFirst);
+            }
+        });
+
+        int count = 0;
+        int end = 0;
+
+        for (SuperRubySpan rubySpan : rubySpans) {
+            if (count == 0 || aText.getSpanStart(rubySpan) >= end) {
+                rubySpans[count++] = rubySpan;
+                end = aText.getSpanEnd(rubySpan);
+            }
+        }
+
+        return Arrays.copyOf(rubySpans, count);
+    }
+
+    static char fold(final char aChar) {
+        if (aChar >= 'ァ' && aChar <= 'ヶ') {
+            return (char) (aChar - ('ァ' - 'ぁ'));
+        }
+
+        return aChar;
+    }
+
+    private static long getKey(final char aFirst, final char aSecond, final int aPosition) {
+        return ((long) aFirst << 48) | ((long) aSecond << 32) | (aPosition & 0xFFFFFFFFL);
+    }
+
+    private void append(final char aChar, final int aBaseStart, final int aBaseEnd) {
+        mChars[mLength] = fold(aChar);
+        mBaseStarts[mLength] = aBaseStart;
+        mBaseEnds[mLength] = aBaseEnd;
+        mLength++;
+    }
+
+    private void appendBase(final @NonNull CharSequence aText, final int aStart, final int aEnd) {
+        for (int i = aStart; i < aEnd; i++) {
+            append(aText.charAt(i), i, i + 1);
+        }
+    }
+
+    // Index of the first bigram greater than aKey, or not lower than
+    // aKey when aInclusive is set.
+
+    private int findBigram(final long aKey, final boolean aInclusive) {
+        int low = 0;
+        int high = mBigramCount;
+
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+
+            if (mBigrams[middle] < aKey || (!aInclusive && mBigrams[middle] == aKey)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private boolean matches(final @NonNull char[] aQuery, final int aPosition) {
+        if (aPosition + aQuery.length > mLength) {
+            return false;
+        }
+
+        for (int i = 0; i < aQuery.length; i++) {
+            if (mChars[aPosition + i] != aQuery[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Ranges of the base text matching aQuery, as start and end offsets
+    // following each other, sorted and without duplicates.
+
+    public @NonNull int[] search(final @NonNull CharSequence aQuery) {
+        final char[] query = new char[aQuery.length()];
+
+        for (int i = 0; i < query.length; i++) {
+            query[i] = fold(aQuery.charAt(i));
+
+            if (query[i] == SEPARATOR) {
+                return new int[0];
+            }
+        }
+
+        if (query.length == 0) {
+            return new int[0];
+        }
+
+        // All the bigrams share the first 16 or 32 bits of their key:
+        // they are contiguous whatever the sign of the keys.
+
+        final long lowKey = query.length == 1 ? getKey(query[0], (char) 0, 0) :
+                getKey(query[0], query[1], 0);
+        final long highKey = query.length == 1 ? lowKey | 0x0000FFFFFFFFFFFFL :
+                lowKey | 0x00000000FFFFFFFFL;
+
+        final int low = findBigram(lowKey, true);
+        final int high = findBigram(highKey, false);
+
+        final long[] ranges = new long[high - low];
+        int rangeCount = 0;
+
+        for (int i = low; i < high; i++) {
+            final int position = (int) mBigrams[i];
+
+            if (matches(query, position)) {
+                ranges[rangeCount++] = ((long) mBaseStarts[position] << 32) |
+                        mBaseEnds[position + query.length - 1];
+            }
+        }
+
+        Arrays.sort(ranges, 0, rangeCount);
+
+        final int[] result = new int[2 * rangeCount];
+        int resultLength = 0;
+
+        for (int i = 0; i < rangeCount; i++) {
+            if (i == 0 || ranges[i] != ranges[i - 1]) {
+                result[resultLength++] = (int) (ranges[i] >>> 32);
+                result[resultLength++] = (int) ranges[i];
+            }
+        }
+
+        return Arrays.copyOf(result, resultLength);
+    }
+}
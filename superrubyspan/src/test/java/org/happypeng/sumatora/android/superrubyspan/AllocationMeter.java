@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+// Bytes allocated by the current thread, as reported by HotSpot
+// based JVMs. isSupported() is false on other JVMs, where budgets
+// on allocations cannot be checked.
+
+public class AllocationMeter {
+    private static final ThreadMXBean sThreadMXBean = ManagementFactory.getThreadMXBean();
+
+    public static boolean isSupported() {
+        return sThreadMXBean instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) sThreadMXBean).isThreadAllocatedMemorySupported();
+    }
+
+    public static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) sThreadMXBean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    // Average bytes allocated by one run of aRunnable
+    public static long measure(final Runnable aRunnable, final int aIterations) {
+        final long start = getAllocatedBytes();
+
+        for (int i = 0; i < aIterations; i++) {
+            aRunnable.run();
+        }
+
+        return (getAllocatedBytes() - start) / aIterations;
+    }
+}
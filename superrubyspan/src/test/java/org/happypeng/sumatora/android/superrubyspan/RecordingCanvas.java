@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.text.TextPaint;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+// Canvas counting draw operations instead of drawing. Paint mutations
+// are counted as the changes of the state of each paint observed
+// between two operations drawn with it. The clip is unknown unless
+// set with setClip().
+
+public class RecordingCanvas extends Canvas {
+    private static final int PAINT_STATE_SIZE = 6;
+
+    private final IdentityHashMap<Paint, float[]> mPaintStates = new IdentityHashMap<>();
+
+    private int mDrawTextCount;
+    private int mDrawRectCount;
+    private int mPaintMutationCount;
+
+    private final float[] mPaintState = new float[PAINT_STATE_SIZE];
+
+    private Rect mClip;
+
+    // The style may be unset on paints that never went through native code
+    private static void getPaintState(final Paint aPaint, final float[] aState) {
+        final Paint.Style style = aPaint.getStyle();
+
+        aState[0] = aPaint.getColor();
+        aState[1] = style == null ? -1 : style.ordinal();
+        aState[2] = aPaint.getTextScaleX();
+        aState[3] = aPaint.getTextSize();
+        aState[4] = aPaint.getFlags();
+        aState[5] = aPaint instanceof TextPaint ? ((TextPaint) aPaint).bgColor : 0;
+    }
+
+    // Compares into a scratch array so that recording does not allocate
+    // once each paint has been seen
+    private void recordPaint(final Paint aPaint) {
+        getPaintState(aPaint, mPaintState);
+
+        final float[] previousPaintState = mPaintStates.get(aPaint);
+
+        if (previousPaintState == null) {
+            mPaintStates.put(aPaint, mPaintState.clone());
+        } else if (!Arrays.equals(previousPaintState, mPaintState)) {
+            mPaintMutationCount++;
+            System.arraycopy(mPaintState, 0, previousPaintState, 0, PAINT_STATE_SIZE);
+        }
+    }
+
+    private void recordText(final Paint aPaint) {
+        mDrawTextCount++;
+        recordPaint(aPaint);
+    }
+
+    private void recordRect(final Paint aPaint) {
+        mDrawRectCount++;
+        recordPaint(aPaint);
+    }
+
+    public int getDrawTextCount() {
+        return mDrawTextCount;
+    }
+
+    public int getDrawRectCount() {
+        return mDrawRectCount;
+    }
+
+    public int getPaintMutationCount() {
+        return mPaintMutationCount;
+    }
+
+    public void setClip(final int aLeft, final int aTop, final int aRight, final int aBottom) {
+        mClip = new Rect(aLeft, aTop, aRight, aBottom);
+    }
+
+    public void reset() {
+        mPaintStates.clear();
+
+        mDrawTextCount = 0;
+        mDrawRectCount = 0;
+        mPaintMutationCount = 0;
+    }
+
+    @Override
+    public boolean getClipBounds(Rect bounds) {
+        if (mClip == null) {
+            return false;
+        }
+
+        bounds.set(mClip);
+
+        return true;
+    }
+
+    @Override
+    public void drawText(char[] text, int index, int count, float x, float y, Paint paint) {
+        recordText(paint);
+    }
+
+    @Override
+    public void drawText(String text, float x, float y, Paint paint) {
+        recordText(paint);
+    }
+
+    @Override
+    public void drawText(String text, int start, int end, float x, float y, Paint paint) {
+        recordText(paint);
+    }
+
+    @Override
+    public void drawText(CharSequence text, int start, int end, float x, float y, Paint paint) {
+        recordText(paint);
+    }
+
+    @Override
+    public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+        recordRect(paint);
+    }
+
+    @Override
+    public void drawRect(Rect r, Paint paint) {
+        recordRect(paint);
+    }
+
+    @Override
+    public void drawRect(RectF rect, Paint paint) {
+        recordRect(paint);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Bitmap;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextPaint;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubyBitmapRendererTest {
+    private static final int THREAD_COUNT = 4;
+    private static final int RENDER_COUNT = 64;
+    private static final int WIDTH = 200;
+
+    private RubyBitmapRenderer mRubyBitmapRenderer;
+    private Spanned mText;
+
+    @Before
+    public void setUp() {
+        final TextPaint textPaint = new TextPaint();
+        textPaint.setTextSize(40);
+
+        mRubyBitmapRenderer = new RubyBitmapRenderer(textPaint, THREAD_COUNT, Bitmap.Config.ARGB_8888);
+
+        final SpannableStringBuilder text = new SpannableStringBuilder();
+        JapaneseText.spannifyWithFurigana(text, "{今日;きょう}は{漢字;かんじ}の{勉強;べんきょう}をします。", 0.5f);
+
+        mText = text;
+    }
+
+    @After
+    public void tearDown() {
+        mRubyBitmapRenderer.shutdown();
+    }
+
+    @Test
+    public void rendersSameTextInParallel() throws Exception {
+        final LinkedList<Future<Bitmap>> futures = new LinkedList<>();
+
+        for (int i = 0; i < RENDER_COUNT; i++) {
+            futures.add(mRubyBitmapRenderer.render(mText, WIDTH, 0));
+        }
+
+        for (Future<Bitmap> future : futures) {
+            final Bitmap bitmap = future.get();
+
+            assertEquals(WIDTH, bitmap.getWidth());
+            assertTrue(bitmap.getHeight() > 0);
+        }
+    }
+
+    @Test
+    public void reusesBitmapsPerThread() throws Exception {
+        final Set<Bitmap> bitmaps = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>()));
+        final LinkedList<Future<?>> futures = new LinkedList<>();
+
+        for (int i = 0; i < RENDER_COUNT; i++) {
+            futures.add(mRubyBitmapRenderer.render(mText, WIDTH, 100,
+                    new RubyBitmapRenderer.OnRenderedListener() {
+                        @Override
+                        public void onRendered(final Spanned aText, final Bitmap aBitmap) {
+                            assertEquals(100, aBitmap.getHeight());
+
+                            bitmaps.add(aBitmap);
+                        }
+                    }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        assertTrue(bitmaps.size() <= THREAD_COUNT);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.text.SpannableStringBuilder;
+import android.text.TextPaint;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubyDebugTest {
+    private TextPaint mPaint;
+    private SpannableStringBuilder mText;
+    private SuperRubySpan mSpan;
+
+    @Before
+    public void setUp() {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(40);
+
+        mText = new SpannableStringBuilder();
+
+        JapaneseText.spannifyWithFurigana(mText, "{漢字;かんじ}です", 0.5f);
+
+        mSpan = mText.getSpans(0, mText.length(), SuperRubySpan.class)[0];
+
+        RubyDebug.clearStatistics();
+    }
+
+    @After
+    public void tearDown() {
+        RubyDebug.setEnabled(false);
+        RubyDebug.clearStatistics();
+    }
+
+    @Test
+    public void disabledRecordsNothing() {
+        final RecordingCanvas canvas = new RecordingCanvas();
+
+        mSpan.getSize(mPaint, mText, 0, 2, null);
+        mSpan.draw(canvas, mText, 0, 2, 0, 0, 80, 100, mPaint);
+
+        assertNull(RubyDebug.getStatistics(mSpan));
+        assertEquals(0, canvas.getDrawRectCount());
+    }
+
+    @Test
+    public void enabledRecordsAndDrawsOverlay() {
+        RubyDebug.setEnabled(true);
+        RubyDebug.setHeatMode(RubyDebug.HeatMode.ELEMENT_COUNT);
+
+        final RecordingCanvas canvas = new RecordingCanvas();
+
+        mSpan.getSize(mPaint, mText, 0, 2, null);
+        mSpan.draw(canvas, mText, 0, 2, 0, 0, 80, 100, mPaint);
+
+        final RubyDebug.SpanStatistics statistics = RubyDebug.getStatistics(mSpan);
+
+        assertNotNull(statistics);
+        assertEquals(1, statistics.getMeasureCount());
+        assertEquals(1, statistics.getDrawCount());
+        assertTrue(statistics.getElementCount() >= 2);
+
+        // Ruby band, outlines of the elements and heat tint
+        assertTrue(canvas.getDrawRectCount() >= 2 + statistics.getElementCount());
+    }
+
+    @Test
+    public void dumpListsSpansAndElements() throws IOException {
+        final StringBuilder output = new StringBuilder();
+
+        RubyDebug.dump(mText, mPaint, output);
+
+        final String[] lines = output.toString().split("\n");
+
+        assertTrue(lines[0].startsWith("span SuperRubySpan 0 2 text=漢字 furigana=かんじ width="));
+
+        int textCount = 0;
+        int furiganaCount = 0;
+
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].startsWith("  text ")) {
+                textCount++;
+            } else if (lines[i].startsWith("  furigana ")) {
+                furiganaCount++;
+            }
+        }
+
+        assertTrue(textCount > 0);
+        assertTrue(furiganaCount > 0);
+    }
+
+    @Test
+    public void heatColorGoesFromGreenToRed() {
+        assertEquals(0x6000FF00, RubyDebug.getHeatColor(0));
+        assertEquals(0x60FF0000, RubyDebug.getHeatColor(1));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.text.SpannableStringBuilder;
+import android.text.TextPaint;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.FuriganaOptions;
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubyHighlighterTest {
+    private static final int HIGHLIGHT_COLOR = Color.RED;
+
+    // Counts the glyphs drawn with the highlight color
+    private static class HighlightCanvas extends RecordingCanvas {
+        int highlightedCount;
+
+        @Override
+        public void drawText(CharSequence text, int start, int end, float x, float y, Paint paint) {
+            super.drawText(text, start, end, x, y, paint);
+
+            if (paint.getColor() == HIGHLIGHT_COLOR && !" ".contentEquals(text)) {
+                highlightedCount += end - start;
+            }
+        }
+    }
+
+    private TextPaint mPaint;
+    private RubyHighlighter mRubyHighlighter;
+    private SpannableStringBuilder mText;
+    private SuperRubySpan mSpan;
+
+    @Before
+    public void setUp() {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(40);
+        mPaint.setColor(Color.BLACK);
+
+        mRubyHighlighter = new RubyHighlighter(HIGHLIGHT_COLOR);
+        mText = new SpannableStringBuilder();
+
+        final FuriganaOptions furiganaOptions = new FuriganaOptions(0.5f);
+        furiganaOptions.setSpannifyText(false);
+
+        JapaneseText.convertWithFurigana(mText, "{漢字;かんじ}", furiganaOptions);
+        RubyHighlighter.attach(mText, mRubyHighlighter);
+
+        mSpan = mText.getSpans(0, mText.length(), SuperRubySpan.class)[0];
+    }
+
+    private int draw() {
+        final HighlightCanvas canvas = new HighlightCanvas();
+
+        mSpan.draw(canvas, mText, 0, mText.length(), 0, 0, 80, 100, mPaint);
+
+        return canvas.highlightedCount;
+    }
+
+    @Test
+    public void highlightsTextAndFurigana() {
+        assertEquals(0, draw());
+
+        mRubyHighlighter.setHighlight(mSpan, 0, 1, 0, 2);
+        assertEquals(3, draw());
+
+        mRubyHighlighter.setHighlight(mSpan, 1, 2, 2, 3);
+        assertEquals(2, draw());
+
+        mRubyHighlighter.clearHighlight();
+        assertEquals(0, draw());
+    }
+
+    @Test
+    public void highlightDoesNotMeasure() {
+        draw();
+
+        final long missCount = RubyMeasureCache.getInstance().getMissCount();
+
+        for (int i = 0; i < 3; i++) {
+            mRubyHighlighter.setHighlight(mSpan, i % 2, i % 2 + 1, i, i + 1);
+            draw();
+        }
+
+        assertEquals(missCount, RubyMeasureCache.getInstance().getMissCount());
+        assertEquals(Color.BLACK, mPaint.getColor());
+    }
+}
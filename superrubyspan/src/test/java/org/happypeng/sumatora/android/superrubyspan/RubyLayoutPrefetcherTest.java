@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextPaint;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubyLayoutPrefetcherTest {
+    // Executor running its tasks only when asked to
+    private static class ManualExecutorService extends AbstractExecutorService {
+        private final LinkedList<Runnable> mRunnables = new LinkedList<>();
+
+        private boolean mShutdown;
+
+        boolean runNext() {
+            final Runnable runnable = mRunnables.poll();
+
+            if (runnable == null) {
+                return false;
+            }
+
+            runnable.run();
+
+            return true;
+        }
+
+        void runAll() {
+            while (runNext()) {
+            }
+        }
+
+        @Override
+        public void execute(final Runnable aRunnable) {
+            mRunnables.add(aRunnable);
+        }
+
+        @Override
+        public void shutdown() {
+            mShutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            mShutdown = true;
+
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return mShutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return mShutdown && mRunnables.isEmpty();
+        }
+
+        @Override
+        public boolean awaitTermination(final long aTimeout, final TimeUnit aTimeUnit) {
+            return isTerminated();
+        }
+    }
+
+    private TextPaint mPaint;
+    private ManualExecutorService mExecutorService;
+    private RubyLayoutPrefetcher mRubyLayoutPrefetcher;
+
+    @Before
+    public void setUp() {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(40);
+
+        mExecutorService = new ManualExecutorService();
+        mRubyLayoutPrefetcher = new RubyLayoutPrefetcher(mExecutorService, 10);
+    }
+
+    private static Spanned createText() {
+        final SpannableStringBuilder text = new SpannableStringBuilder();
+        JapaneseText.spannifyWithFurigana(text, "{今日;きょう}は{漢字;かんじ}の勉強", 0.5f);
+
+        return text;
+    }
+
+    // Measures the top level spans of aText as a StaticLayout would,
+    // returning the number of measurements missing from the cache
+    private long layOut(final Spanned aText) {
+        final long missCount = RubyMeasureCache.getInstance().getMissCount();
+        final TextPaint workPaint = new TextPaint();
+        final Paint.FontMetricsInt fontMetricsInt = new Paint.FontMetricsInt();
+
+        for (SuperReplacementSpan span : RubySnapshot.getTopLevelSpans(aText)) {
+            final int start = aText.getSpanStart(span);
+            final int end = aText.getSpanEnd(span);
+
+            RubyLayoutPrefetcher.updateMeasureState(aText, start, end, mPaint, workPaint);
+
+            span.getSize(workPaint, aText, start, end, fontMetricsInt);
+        }
+
+        return RubyMeasureCache.getInstance().getMissCount() - missCount;
+    }
+
+    @Test
+    public void prefetchedTextSkipsMeasuring() {
+        final Spanned text = createText();
+
+        mRubyLayoutPrefetcher.prefetch(0, text, mPaint);
+        mExecutorService.runAll();
+
+        assertEquals(0, layOut(text));
+    }
+
+    @Test
+    public void cancelledTextIsNotMeasured() {
+        final Spanned cancelledText = createText();
+        final Spanned clearedText = createText();
+
+        mRubyLayoutPrefetcher.prefetch(0, cancelledText, mPaint);
+        mRubyLayoutPrefetcher.prefetch(1, clearedText, mPaint);
+
+        mRubyLayoutPrefetcher.cancel(0);
+        mRubyLayoutPrefetcher.setViewport(20, 30);
+
+        final long missCount = RubyMeasureCache.getInstance().getMissCount();
+
+        mExecutorService.runAll();
+
+        assertEquals(missCount, RubyMeasureCache.getInstance().getMissCount());
+        assertTrue(layOut(cancelledText) > 0);
+        assertTrue(layOut(clearedText) > 0);
+    }
+
+    @Test
+    public void farTextIsNotPrefetched() {
+        final Spanned text = createText();
+
+        mRubyLayoutPrefetcher.prefetch(11, text, mPaint);
+        mExecutorService.runAll();
+
+        assertTrue(layOut(text) > 0);
+    }
+
+    @Test
+    public void closestTextIsPrefetchedFirst() {
+        final Spanned farText = createText();
+        final Spanned visibleText = createText();
+        final Spanned nearText = createText();
+
+        mRubyLayoutPrefetcher.setViewport(4, 6);
+
+        mRubyLayoutPrefetcher.prefetch(12, farText, mPaint);
+        mRubyLayoutPrefetcher.prefetch(5, visibleText, mPaint);
+        mRubyLayoutPrefetcher.prefetch(8, nearText, mPaint);
+
+        assertTrue(mExecutorService.runNext());
+        assertEquals(0, layOut(visibleText));
+
+        assertTrue(mExecutorService.runNext());
+        assertEquals(0, layOut(nearText));
+
+        mRubyLayoutPrefetcher.cancelAll();
+
+        assertTrue(mExecutorService.runNext());
+        assertTrue(layOut(farText) > 0);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+import android.text.SpannableStringBuilder;
+import android.text.TextPaint;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubyLineMetricsTest {
+    private TextPaint mPaint;
+    private RubyLineMetrics mRubyLineMetrics;
+    private SpannableStringBuilder mText;
+
+    @Before
+    public void setUp() {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(40);
+
+        mRubyLineMetrics = new RubyLineMetrics(0.5f);
+        mText = new SpannableStringBuilder();
+
+        JapaneseText.spannifyWithFurigana(mText, "{漢字;かんじ}は{字;ながいよみかた}の", 0.5f);
+        RubyLineMetrics.attach(mText, mRubyLineMetrics);
+    }
+
+    @Test
+    public void allSpansHaveTheSameMetrics() {
+        final int lineHeight = mRubyLineMetrics.getLineHeight(mPaint);
+
+        assertTrue(lineHeight > mPaint.getFontMetricsInt(null));
+
+        for (SuperReplacementSpan span : mText.getSpans(0, mText.length(), SuperReplacementSpan.class)) {
+            final Paint.FontMetricsInt fontMetricsInt = new Paint.FontMetricsInt();
+
+            span.getSize(mPaint, mText, mText.getSpanStart(span), mText.getSpanEnd(span), fontMetricsInt);
+
+            assertEquals(lineHeight, fontMetricsInt.descent - fontMetricsInt.ascent);
+            assertEquals(-mRubyLineMetrics.getBaselineOffset(mPaint), fontMetricsInt.ascent);
+        }
+    }
+
+    @Test
+    public void widthsAreUnchanged() {
+        final SuperRubySpan rubySpan = mText.getSpans(0, mText.length(), SuperRubySpan.class)[0];
+        final int start = mText.getSpanStart(rubySpan);
+        final int end = mText.getSpanEnd(rubySpan);
+        final int size = rubySpan.getSize(mPaint, mText, start, end, null);
+
+        rubySpan.setRubyLineMetrics(null);
+
+        assertEquals(size, rubySpan.getSize(mPaint, mText, start, end, null));
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.text.TextPaint;
+import android.text.style.ForegroundColorSpan;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubyMeasureCacheTest {
+    private static final String TEXT = "漢字の読み方";
+
+    private TextPaint mPaint;
+    private SuperReplacementSpan mSpan;
+    private SuperReplacementSpan.TextSizeInformation mTextSizeInformation;
+
+    @Before
+    public void setUp() {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(40);
+
+        mSpan = new SuperReplacementSpan();
+        mTextSizeInformation = mSpan.getTextSize(mPaint, TEXT, 0, TEXT.length());
+    }
+
+    private long getEntryBytes() {
+        final RubyMeasureCache rubyMeasureCache = new RubyMeasureCache(Long.MAX_VALUE);
+
+        new TextSizeCache(rubyMeasureCache).put(mPaint, TEXT, 0, TEXT.length(), mTextSizeInformation);
+
+        return rubyMeasureCache.getSizeBytes();
+    }
+
+    private TextSizeCache[] fill(final RubyMeasureCache aRubyMeasureCache, final int aCount) {
+        final TextSizeCache[] slots = new TextSizeCache[aCount];
+
+        for (int i = 0; i < aCount; i++) {
+            slots[i] = new TextSizeCache(aRubyMeasureCache);
+            slots[i].put(mPaint, TEXT, 0, TEXT.length(), mTextSizeInformation);
+        }
+
+        return slots;
+    }
+
+    @Test
+    public void hitsAndMisses() {
+        final RubyMeasureCache rubyMeasureCache = new RubyMeasureCache(Long.MAX_VALUE);
+        final TextSizeCache slot = new TextSizeCache(rubyMeasureCache);
+
+        assertNull(slot.get(mPaint, TEXT, 0, TEXT.length()));
+
+        slot.put(mPaint, TEXT, 0, TEXT.length(), mTextSizeInformation);
+
+        assertSame(mTextSizeInformation, slot.get(mPaint, TEXT, 0, TEXT.length()));
+
+        final TextPaint largerPaint = new TextPaint(mPaint);
+        largerPaint.setTextSize(80);
+
+        assertNull(slot.get(largerPaint, TEXT, 0, TEXT.length()));
+        assertNull(slot.get(mPaint, "漢字の読み物", 0, TEXT.length()));
+
+        assertEquals(1, rubyMeasureCache.getHitCount());
+        assertEquals(3, rubyMeasureCache.getMissCount());
+        assertEquals(0, rubyMeasureCache.getEvictionCount());
+    }
+
+    private static TextPaint createPaint() {
+        final TextPaint textPaint = new TextPaint();
+        textPaint.setTextSize(40);
+
+        return textPaint;
+    }
+
+    // Paint state changing the glyphs or their widths beyond text size
+    @Test
+    public void localesAndFontSettingsMiss() {
+        final RubyMeasureCache rubyMeasureCache = new RubyMeasureCache(Long.MAX_VALUE);
+        final TextSizeCache slot = new TextSizeCache(rubyMeasureCache);
+
+        slot.put(mPaint, TEXT, 0, TEXT.length(), mTextSizeInformation);
+
+        assertSame(mTextSizeInformation, slot.get(createPaint(), TEXT, 0, TEXT.length()));
+
+        final TextPaint localePaint = createPaint();
+        localePaint.setTextLocale(Locale.SIMPLIFIED_CHINESE);
+
+        assertNull(slot.get(localePaint, TEXT, 0, TEXT.length()));
+
+        final TextPaint featurePaint = createPaint();
+        featurePaint.setFontFeatureSettings("palt");
+
+        assertNull(slot.get(featurePaint, TEXT, 0, TEXT.length()));
+    }
+
+    @Test
+    public void immutableTextLookupsDoNotAllocate() {
+        assumeTrue(AllocationMeter.isSupported());
+
+        final SpannableString spannableString = new SpannableString(TEXT);
+        spannableString.setSpan(new ForegroundColorSpan(Color.RED), 0, 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        final SpannedString text = new SpannedString(spannableString);
+        final SuperReplacementSpan.TextSizeInformation textSizeInformation =
+                mSpan.getTextSize(mPaint, text, 0, text.length());
+        final TextSizeCache slot = new TextSizeCache(new RubyMeasureCache(Long.MAX_VALUE));
+
+        slot.put(mPaint, text, 0, text.length(), textSizeInformation);
+
+        final Runnable getRunnable = new Runnable() {
+            @Override
+            public void run() {
+                assertSame(textSizeInformation, slot.get(mPaint, text, 0, text.length()));
+            }
+        };
+
+        getRunnable.run();
+
+        assertEquals(0, AllocationMeter.measure(getRunnable, 100));
+    }
+
+    @Test
+    public void keepsTwoMeasurementsPerSlot() {
+        final RubyMeasureCache rubyMeasureCache = new RubyMeasureCache(Long.MAX_VALUE);
+        final TextSizeCache slot = new TextSizeCache(rubyMeasureCache);
+        final TextPaint drawPaint = new TextPaint(mPaint);
+        drawPaint.setColor(0xFFFF0000);
+
+        final SuperReplacementSpan.TextSizeInformation drawTextSizeInformation =
+                mSpan.getTextSize(drawPaint, TEXT, 0, TEXT.length());
+
+        slot.put(mPaint, TEXT, 0, TEXT.length(), mTextSizeInformation);
+        slot.put(drawPaint, TEXT, 0, TEXT.length(), drawTextSizeInformation);
+
+        assertSame(mTextSizeInformation, slot.get(mPaint, TEXT, 0, TEXT.length()));
+        assertSame(drawTextSizeInformation, slot.get(drawPaint, TEXT, 0, TEXT.length()));
+        assertEquals(1, rubyMeasureCache.getEntryCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedPastBudget() {
+        final long entryBytes = getEntryBytes();
+        final RubyMeasureCache rubyMeasureCache = new RubyMeasureCache(3 * entryBytes);
+        final TextSizeCache[] slots = fill(rubyMeasureCache, 3);
+
+        // Touch the first slot so that the second one is the eldest
+        assertNotNull(slots[0].get(mPaint, TEXT, 0, TEXT.length()));
+
+        final TextSizeCache[] moreSlots = fill(rubyMeasureCache, 7);
+
+        assertTrue(rubyMeasureCache.getSizeBytes() <= 3 * entryBytes);
+        assertEquals(3, rubyMeasureCache.getEntryCount());
+        assertEquals(7, rubyMeasureCache.getEvictionCount());
+
+        assertNull(slots[0].get(mPaint, TEXT, 0, TEXT.length()));
+        assertNull(slots[1].get(mPaint, TEXT, 0, TEXT.length()));
+        assertNull(moreSlots[3].get(mPaint, TEXT, 0, TEXT.length()));
+        assertNotNull(moreSlots[4].get(mPaint, TEXT, 0, TEXT.length()));
+        assertNotNull(moreSlots[6].get(mPaint, TEXT, 0, TEXT.length()));
+    }
+
+    @Test
+    public void shrinksWithMaxBytes() {
+        final long entryBytes = getEntryBytes();
+        final RubyMeasureCache rubyMeasureCache = new RubyMeasureCache(10 * entryBytes);
+
+        fill(rubyMeasureCache, 10);
+
+        assertEquals(10, rubyMeasureCache.getEntryCount());
+
+        rubyMeasureCache.setMaxBytes(4 * entryBytes);
+
+        assertEquals(4, rubyMeasureCache.getEntryCount());
+        assertEquals(6, rubyMeasureCache.getEvictionCount());
+        assertTrue(rubyMeasureCache.getSizeBytes() <= rubyMeasureCache.getMaxBytes());
+    }
+
+    @Test
+    public void reactsToTrimMemory() {
+        final long entryBytes = getEntryBytes();
+        final RubyMeasureCache rubyMeasureCache = new RubyMeasureCache(8 * entryBytes);
+        final ComponentCallbacks2 componentCallbacks = rubyMeasureCache.getComponentCallbacks();
+
+        fill(rubyMeasureCache, 8);
+
+        componentCallbacks.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(6, rubyMeasureCache.getEntryCount());
+
+        componentCallbacks.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(4, rubyMeasureCache.getEntryCount());
+
+        componentCallbacks.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(2, rubyMeasureCache.getEntryCount());
+
+        componentCallbacks.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, rubyMeasureCache.getEntryCount());
+        assertEquals(0, rubyMeasureCache.getSizeBytes());
+
+        // The budget itself is left untouched
+        assertEquals(8 * entryBytes, rubyMeasureCache.getMaxBytes());
+    }
+
+    @Test
+    public void globalCacheStaysWithinBudget() {
+        final RubyMeasureCache rubyMeasureCache = RubyMeasureCache.getInstance();
+        final long maxBytes = rubyMeasureCache.getMaxBytes();
+        final SpannableStringBuilder spannableStringBuilder = new SpannableStringBuilder();
+        final Paint.FontMetricsInt fontMetricsInt = new Paint.FontMetricsInt();
+
+        for (int i = 0; i < 200; i++) {
+            JapaneseText.spannifyWithFurigana(spannableStringBuilder,
+                    "{漢字;かんじ}の{読;よ}み{方;かた}。", 0.5f);
+        }
+
+        try {
+            rubyMeasureCache.clear();
+            rubyMeasureCache.resetStatistics();
+            rubyMeasureCache.setMaxBytes(32 * 1024);
+
+            for (SuperReplacementSpan superReplacementSpan : spannableStringBuilder.getSpans(0,
+                    spannableStringBuilder.length(), SuperReplacementSpan.class)) {
+                superReplacementSpan.getSize(mPaint, spannableStringBuilder,
+                        spannableStringBuilder.getSpanStart(superReplacementSpan),
+                        spannableStringBuilder.getSpanEnd(superReplacementSpan),
+                        fontMetricsInt);
+            }
+
+            assertTrue(rubyMeasureCache.getSizeBytes() <= 32 * 1024);
+            assertTrue(rubyMeasureCache.getEvictionCount() > 0);
+            assertTrue(rubyMeasureCache.getMissCount() > 0);
+        } finally {
+            rubyMeasureCache.clear();
+            rubyMeasureCache.setMaxBytes(maxBytes);
+        }
+    }
+}
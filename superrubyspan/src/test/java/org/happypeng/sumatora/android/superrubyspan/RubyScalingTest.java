@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextPaint;
+
+import androidx.annotation.Nullable;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubyScalingTest {
+    private TextPaint mPaint;
+    private RubyScaling mRubyScaling;
+    private SpannableStringBuilder mText;
+    private SuperRubySpan mSpan;
+
+    @Before
+    public void setUp() {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(40);
+
+        mRubyScaling = new RubyScaling();
+        mText = new SpannableStringBuilder();
+
+        JapaneseText.spannifyWithFurigana(mText, "{漢字;かんじ}", 0.5f);
+        RubyScaling.attach(mText, mRubyScaling);
+
+        mSpan = mText.getSpans(0, mText.length(), SuperRubySpan.class)[0];
+    }
+
+    private int getSize(final Paint.FontMetricsInt aFontMetricsInt) {
+        return mSpan.getSize(mPaint, mText, 0, mText.length(), aFontMetricsInt);
+    }
+
+    @Test
+    public void previewScalesCachedMeasurements() {
+        final Paint.FontMetricsInt exactMetrics = new Paint.FontMetricsInt();
+        final int exactSize = getSize(exactMetrics);
+
+        final long missCount = RubyMeasureCache.getInstance().getMissCount();
+
+        mRubyScaling.setPreviewScale(1.5f);
+
+        final Paint.FontMetricsInt previewMetrics = new Paint.FontMetricsInt();
+        final int previewSize = getSize(previewMetrics);
+
+        assertEquals(Math.round(exactSize * 1.5f), previewSize);
+        assertEquals(Math.round(exactMetrics.ascent * 1.5f), previewMetrics.ascent);
+        assertEquals(Math.round(exactMetrics.descent * 1.5f), previewMetrics.descent);
+
+        final RecordingCanvas canvas = new RecordingCanvas();
+
+        mSpan.draw(canvas, mText, 0, mText.length(), 0, 0, 80, 100, mPaint);
+
+        assertTrue(canvas.getDrawTextCount() > 0);
+        assertEquals(missCount, RubyMeasureCache.getInstance().getMissCount());
+
+        assertEquals(1.5f, mRubyScaling.endPreview(), 0);
+        assertFalse(mRubyScaling.isPreviewing());
+        assertEquals(exactSize, getSize(null));
+    }
+
+    private int getNestedParentSize(final @Nullable RubyScaling aNestedRubyScaling) {
+        final SpannableString furigana = new SpannableString("ふりがなふりがな");
+        final SuperRubySpan nestedSpan = new SuperRubySpan("furigana");
+        final SpannableString text = new SpannableString("漢字");
+
+        nestedSpan.setRubyScaling(aNestedRubyScaling);
+        furigana.setSpan(nestedSpan, 0, furigana.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        text.setSpan(new SuperRubySpan(furigana), 0, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        return text.getSpans(0, text.length(), SuperRubySpan.class)[0].getSize(mPaint, text, 0, text.length(), null);
+    }
+
+    // A nested span attached by mistake does not scale its parent
+    @Test
+    public void nestedSpansAreNotScaled() {
+        final RubyScaling nestedRubyScaling = new RubyScaling();
+
+        nestedRubyScaling.setPreviewScale(2);
+
+        assertEquals(getNestedParentSize(null), getNestedParentSize(nestedRubyScaling));
+    }
+
+    @Test
+    public void listenersAreNotifiedOfChanges() {
+        final int[] notificationCount = new int[1];
+
+        mRubyScaling.addOnScaleChangedListener(new RubyScaling.OnScaleChangedListener() {
+            @Override
+            public void onScaleChanged(RubyScaling aRubyScaling) {
+                notificationCount[0]++;
+            }
+        });
+
+        mRubyScaling.setPreviewScale(1);
+        mRubyScaling.setPreviewScale(0);
+        assertEquals(0, notificationCount[0]);
+
+        mRubyScaling.setPreviewScale(2);
+        mRubyScaling.endPreview();
+        assertEquals(2, notificationCount[0]);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+import android.os.Parcel;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextPaint;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.FuriganaOptions;
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubySnapshotTest {
+    private TextPaint mPaint;
+    private SpannableStringBuilder mText;
+
+    @Before
+    public void setUp() {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(40);
+
+        mText = new SpannableStringBuilder();
+        JapaneseText.spannifyWithFurigana(mText, "{今日;きょう}は{漢字;かんじ}の勉強", 0.5f);
+    }
+
+    private static RubySnapshot parcel(final RubySnapshot aRubySnapshot) {
+        final Parcel parcel = Parcel.obtain();
+
+        try {
+            aRubySnapshot.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+
+            return RubySnapshot.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static SuperRubySpan[] getRubySpans(final Spanned aText) {
+        return aText.getSpans(0, aText.length(), SuperRubySpan.class);
+    }
+
+    // Size of aSpan measured with the paint a StaticLayout would pass it,
+    // the one the snapshot recorded its hints with
+    private int getSize(final SuperRubySpan aSpan, final Spanned aText,
+                        final Paint.FontMetricsInt aFontMetricsInt) {
+        final TextPaint workPaint = new TextPaint();
+        final int start = aText.getSpanStart(aSpan);
+        final int end = aText.getSpanEnd(aSpan);
+
+        RubyLayoutPrefetcher.updateMeasureState(aText, start, end, mPaint, workPaint);
+
+        return aSpan.getSize(workPaint, aText, start, end, aFontMetricsInt);
+    }
+
+    @Test
+    public void restoresSpans() {
+        final Spanned restored = parcel(RubySnapshot.create(mText)).restore();
+
+        assertEquals(mText.toString(), restored.toString());
+        assertEquals(mText.getSpans(0, mText.length(), SuperReplacementSpan.class).length,
+                restored.getSpans(0, restored.length(), SuperReplacementSpan.class).length);
+
+        final SuperRubySpan[] rubySpans = getRubySpans(restored);
+
+        assertEquals(2, rubySpans.length);
+
+        for (SuperRubySpan rubySpan : rubySpans) {
+            final int start = restored.getSpanStart(rubySpan);
+
+            assertEquals(start == 0 ? "きょう" : "かんじ", rubySpan.getFurigana().toString());
+            assertEquals(SuperReplacementSpan.Alignment.JIS, rubySpan.getAlignment());
+            assertEquals(SuperReplacementSpan.Alignment.JIS, rubySpan.getFuriganaAlignment());
+        }
+    }
+
+    @Test
+    public void restoredMeasurementsSkipMeasuring() {
+        final RubySnapshot rubySnapshot = parcel(RubySnapshot.create(mText, mPaint));
+
+        assertTrue(rubySnapshot.hasMeasurements());
+
+        final Spanned restored = rubySnapshot.restore();
+        final SuperRubySpan originalSpan = getRubySpans(mText)[0];
+        final Paint.FontMetricsInt originalMetrics = new Paint.FontMetricsInt();
+        final int originalSize = getSize(originalSpan, mText, originalMetrics);
+
+        final long missCount = RubyMeasureCache.getInstance().getMissCount();
+
+        for (SuperRubySpan rubySpan : getRubySpans(restored)) {
+            final Paint.FontMetricsInt restoredMetrics = new Paint.FontMetricsInt();
+            final int restoredSize = getSize(rubySpan, restored, restoredMetrics);
+
+            if (restored.getSpanStart(rubySpan) == 0) {
+                assertEquals(originalSize, restoredSize);
+                assertEquals(originalMetrics.ascent, restoredMetrics.ascent);
+                assertEquals(originalMetrics.descent, restoredMetrics.descent);
+            }
+        }
+
+        assertEquals(missCount, RubyMeasureCache.getInstance().getMissCount());
+
+        // Different metrics: measured again
+        final TextPaint largerPaint = new TextPaint(mPaint);
+        largerPaint.setTextSize(80);
+
+        final SuperRubySpan restoredSpan = getRubySpans(restored)[0];
+
+        restoredSpan.getSize(largerPaint, restored, 0, 2, null);
+
+        assertTrue(RubyMeasureCache.getInstance().getMissCount() > missCount);
+    }
+
+    @Test
+    public void outdatedHintIsDropped() {
+        final Spanned restored = parcel(RubySnapshot.create(mText, mPaint)).restore();
+        final SuperRubySpan restoredSpan = getRubySpans(restored)[0];
+
+        final TextPaint largerPaint = new TextPaint(mPaint);
+        largerPaint.setTextSize(80);
+
+        restoredSpan.getSize(largerPaint, restored, 0, 2, null);
+
+        // Measured for real even with the paint of the hint
+        final long missCount = RubyMeasureCache.getInstance().getMissCount();
+
+        getSize(restoredSpan, restored, null);
+
+        assertTrue(RubyMeasureCache.getInstance().getMissCount() > missCount);
+    }
+
+    // Hints of another font family, which may have the same style
+    @Test
+    public void otherTypefaceIgnoresHint() {
+        final SizeHint sizeHint = SizeHint.create(mPaint, true, 10, new Paint.FontMetricsInt());
+        final SizeHint otherSizeHint = new SizeHint(sizeHint.textSize, sizeHint.textScaleX, sizeHint.textSkewX,
+                sizeHint.letterSpacing, sizeHint.flags, sizeHint.typefaceStyle, sizeHint.typefaceWidth + 1,
+                sizeHint.furiganaVisible, sizeHint.size, sizeHint.ascent, sizeHint.top,
+                sizeHint.descent, sizeHint.bottom, sizeHint.leading);
+
+        assertTrue(sizeHint.matches(mPaint, true));
+        assertFalse(otherSizeHint.matches(mPaint, true));
+    }
+
+    @Test
+    public void hiddenFuriganaIgnoreVisibleMeasurements() {
+        final RubyVisibility rubyVisibility = new RubyVisibility(true);
+        final Spanned restored = parcel(RubySnapshot.create(mText, mPaint)).restore(rubyVisibility);
+
+        final SpannableStringBuilder hiddenText = new SpannableStringBuilder();
+        final FuriganaOptions furiganaOptions = new FuriganaOptions(0.5f);
+        furiganaOptions.setRubyVisibility(new RubyVisibility(false));
+
+        JapaneseText.convertWithFurigana(hiddenText, "{今日;きょう}は{漢字;かんじ}の勉強", furiganaOptions);
+
+        final SuperRubySpan hiddenSpan = getRubySpans(hiddenText)[0];
+        final Paint.FontMetricsInt hiddenMetrics = new Paint.FontMetricsInt();
+        final int hiddenSize = hiddenSpan.getSize(mPaint, hiddenText, 0, 2, hiddenMetrics);
+
+        rubyVisibility.setFuriganaVisible(false);
+
+        final SuperRubySpan restoredSpan = getRubySpans(restored)[0];
+        final Paint.FontMetricsInt restoredMetrics = new Paint.FontMetricsInt();
+        final int restoredSize = restoredSpan.getSize(mPaint, restored, 0, 2, restoredMetrics);
+
+        assertEquals(hiddenSize, restoredSize);
+        assertEquals(hiddenMetrics.ascent, restoredMetrics.ascent);
+        assertEquals(hiddenMetrics.top, restoredMetrics.top);
+        assertEquals(hiddenMetrics.descent, restoredMetrics.descent);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Color;
+import android.text.SpannableStringBuilder;
+import android.view.View;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.FuriganaOptions;
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubyTextViewTest {
+    private static final int SPAN_COUNT = 8;
+
+    private RubyTextView mRubyTextView;
+
+    @Before
+    public void setUp() {
+        mRubyTextView = new RubyTextView(RuntimeEnvironment.application);
+        mRubyTextView.setText(createText(SPAN_COUNT));
+    }
+
+    private static CharSequence createText(final int aSpanCount) {
+        final FuriganaOptions furiganaOptions = new FuriganaOptions(0.5f);
+        final StringBuilder string = new StringBuilder();
+        final SpannableStringBuilder text = new SpannableStringBuilder();
+
+        furiganaOptions.setSpannifyText(false);
+
+        for (int i = 0; i < aSpanCount; i++) {
+            string.append("{漢;かん}");
+        }
+
+        JapaneseText.convertWithFurigana(text, string.toString(), furiganaOptions);
+
+        return text;
+    }
+
+    private void measureAndLayOut(final int aWidthMeasureSpec) {
+        mRubyTextView.measure(aWidthMeasureSpec, View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+        mRubyTextView.layout(0, 0, mRubyTextView.getMeasuredWidth(), mRubyTextView.getMeasuredHeight());
+    }
+
+    @Test
+    public void wrappedLayoutIsReused() {
+        final float spanWidth = new RubyLayout(createText(1), mRubyTextView.getPaint(), Integer.MAX_VALUE).getMaxLineWidth();
+
+        // Two spans per line, narrower than the available width
+        measureAndLayOut(View.MeasureSpec.makeMeasureSpec((int) (2.5f * spanWidth), View.MeasureSpec.AT_MOST));
+
+        final RubyLayout layout = mRubyTextView.getLayout();
+
+        assertNotNull(layout);
+        assertEquals(SPAN_COUNT / 2, layout.getLineCount());
+        assertEquals((int) Math.ceil(2 * spanWidth), mRubyTextView.getWidth());
+
+        mRubyTextView.draw(new RecordingCanvas());
+        assertSame(layout, mRubyTextView.getLayout());
+
+        // Measured again at its own width, as a parent would
+        measureAndLayOut(View.MeasureSpec.makeMeasureSpec(mRubyTextView.getWidth(), View.MeasureSpec.EXACTLY));
+        assertSame(layout, mRubyTextView.getLayout());
+
+        measureAndLayOut(View.MeasureSpec.makeMeasureSpec((int) (4.5f * spanWidth), View.MeasureSpec.AT_MOST));
+        assertNotSame(layout, mRubyTextView.getLayout());
+        assertEquals(SPAN_COUNT / 4, mRubyTextView.getLayout().getLineCount());
+    }
+
+    @Test
+    public void unwrappedLayoutIsReused() {
+        measureAndLayOut(View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+
+        final RubyLayout layout = mRubyTextView.getLayout();
+
+        assertNotNull(layout);
+        assertEquals(1, layout.getLineCount());
+
+        measureAndLayOut(View.MeasureSpec.makeMeasureSpec(mRubyTextView.getWidth() * 2, View.MeasureSpec.AT_MOST));
+        mRubyTextView.draw(new RecordingCanvas());
+
+        assertSame(layout, mRubyTextView.getLayout());
+    }
+
+    @Test
+    public void textColorKeepsLayout() {
+        measureAndLayOut(View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+
+        final RubyLayout layout = mRubyTextView.getLayout();
+
+        mRubyTextView.setTextColor(Color.RED);
+
+        assertSame(layout, mRubyTextView.getLayout());
+        assertFalse(mRubyTextView.isLayoutRequested());
+    }
+}
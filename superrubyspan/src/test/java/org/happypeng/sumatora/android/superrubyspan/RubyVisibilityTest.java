@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Paint;
+import android.text.SpannableStringBuilder;
+import android.text.TextPaint;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.FuriganaOptions;
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubyVisibilityTest {
+    private TextPaint mPaint;
+    private RubyVisibility mRubyVisibility;
+    private SpannableStringBuilder mText;
+    private SuperRubySpan mSpan;
+
+    @Before
+    public void setUp() {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(40);
+
+        mRubyVisibility = new RubyVisibility();
+        mText = new SpannableStringBuilder();
+
+        final FuriganaOptions furiganaOptions = new FuriganaOptions(0.5f);
+        furiganaOptions.setRubyVisibility(mRubyVisibility);
+        furiganaOptions.setSpannifyText(false);
+
+        JapaneseText.convertWithFurigana(mText, "{字;じのよみかた}", furiganaOptions);
+
+        mSpan = mText.getSpans(0, mText.length(), SuperRubySpan.class)[0];
+    }
+
+    private int getSize(final Paint.FontMetricsInt aFontMetricsInt) {
+        return mSpan.getSize(mPaint, mText, 0, mText.length(), aFontMetricsInt);
+    }
+
+    @Test
+    public void hiddenFuriganaUseBaseMetrics() {
+        final Paint.FontMetricsInt visibleMetrics = new Paint.FontMetricsInt();
+        final int visibleSize = getSize(visibleMetrics);
+
+        mRubyVisibility.setFuriganaVisible(false);
+
+        final Paint.FontMetricsInt hiddenMetrics = new Paint.FontMetricsInt();
+        final int hiddenSize = getSize(hiddenMetrics);
+
+        assertFalse(mSpan.isFuriganaVisible());
+        assertTrue(hiddenSize < visibleSize);
+        assertTrue(hiddenMetrics.ascent > visibleMetrics.ascent);
+        assertEquals(visibleMetrics.descent, hiddenMetrics.descent);
+
+        mRubyVisibility.setFuriganaVisible(true);
+
+        assertEquals(visibleSize, getSize(new Paint.FontMetricsInt()));
+    }
+
+    @Test
+    public void toggleReusesCachedMeasurements() {
+        getSize(null);
+
+        final long missCount = RubyMeasureCache.getInstance().getMissCount();
+
+        mRubyVisibility.toggleFuriganaVisible();
+        getSize(null);
+        mRubyVisibility.toggleFuriganaVisible();
+        getSize(null);
+
+        assertEquals(missCount, RubyMeasureCache.getInstance().getMissCount());
+    }
+
+    @Test
+    public void listenersAreNotifiedOfChanges() {
+        final int[] notificationCount = new int[1];
+
+        mRubyVisibility.addOnVisibilityChangedListener(new RubyVisibility.OnVisibilityChangedListener() {
+            @Override
+            public void onVisibilityChanged(RubyVisibility aRubyVisibility) {
+                notificationCount[0]++;
+            }
+        });
+
+        mRubyVisibility.setFuriganaVisible(true);
+        assertEquals(0, notificationCount[0]);
+
+        mRubyVisibility.setFuriganaVisible(false);
+        assertEquals(1, notificationCount[0]);
+    }
+}
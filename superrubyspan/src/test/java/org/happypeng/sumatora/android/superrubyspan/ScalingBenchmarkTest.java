@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.style.ForegroundColorSpan;
+
+import org.happypeng.sumatora.android.superrubyspan.tools.AozoraRubyParser;
+import org.happypeng.sumatora.android.superrubyspan.tools.FuriganaOptions;
+import org.happypeng.sumatora.android.superrubyspan.tools.JapaneseText;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assume.assumeTrue;
+
+// End to end benchmark of the conversion, StaticLayout construction and
+// drawing of synthetic Aozora Bunko corpora, from 1 KB to the size set
+// by the superrubyspan.benchmark.maxBytes property. Only run with
+// ./gradlew test -Psuperrubyspan.benchmark
+//
+// For each corpus, prints the time and throughput of each phase, the
+// peak heap, and the scaling exponent of the total time compared with
+// the previous size: 1 is linear, more is super-linear.
+
+@RunWith(RobolectricTestRunner.class)
+public class ScalingBenchmarkTest {
+    private static final int MIN_BYTES = 1000;
+    private static final int LAYOUT_WIDTH = 1080;
+    private static final float TEXT_SIZE = 40;
+    private static final float FURIGANA_RELATIVE_SIZE = 0.5f;
+
+    private static final String[][] WORDS = {
+            { "漢字", "かんじ" }, { "勉強", "べんきょう" }, { "今日", "きょう" },
+            { "練習", "れんしゅう" }, { "読書", "どくしょ" }, { "時間", "じかん" },
+            { "言葉", "ことば" }, { "世界", "せかい" }, { "電車", "でんしゃ" },
+            { "図書館", "としょかん" }, { "先生", "せんせい" }, { "春", "はる" }
+    };
+
+    private static final String KANA = "はのをにがでともへやからまでより";
+
+    private static class Density {
+        final String name;
+        final float annotationRatio;
+        final boolean nested;
+        final boolean styled;
+
+        Density(final String aName, final float aAnnotationRatio,
+                final boolean aNested, final boolean aStyled) {
+            name = aName;
+            annotationRatio = aAnnotationRatio;
+            nested = aNested;
+            styled = aStyled;
+        }
+    }
+
+    private static final Density[] DENSITIES = {
+            new Density("sparse", 0.1f, false, false),
+            new Density("dense", 0.6f, false, false),
+            new Density("nested", 0.3f, true, false),
+            new Density("styled", 0.3f, false, true)
+    };
+
+    // Draws every line of a layout
+    private static class FullCanvas extends RecordingCanvas {
+        private final int mHeight;
+
+        FullCanvas(final int aHeight) {
+            mHeight = aHeight;
+        }
+
+        @Override
+        public boolean getClipBounds(Rect bounds) {
+            bounds.set(0, 0, LAYOUT_WIDTH, mHeight);
+
+            return true;
+        }
+    }
+
+    private static int getUtf8Length(final char aChar) {
+        return aChar < 0x80 ? 1 : aChar < 0x800 ? 2 : 3;
+    }
+
+    private static String generateCorpus(final long aBytes, final Density aDensity, final Random aRandom) {
+        final StringBuilder corpus = new StringBuilder();
+        long bytes = 0;
+        int lineLength = 0;
+
+        while (bytes < aBytes) {
+            final String[] word = WORDS[aRandom.nextInt(WORDS.length)];
+            final int start = corpus.length();
+
+            if (aRandom.nextFloat() < aDensity.annotationRatio) {
+                corpus.append('｜').append(word[0]).append('《').append(word[1]).append('》');
+            } else {
+                corpus.append(word[0]);
+            }
+
+            corpus.append(KANA.charAt(aRandom.nextInt(KANA.length())));
+            lineLength += 3;
+
+            if (aRandom.nextInt(8) == 0) {
+                corpus.append('、');
+            }
+
+            if (lineLength > 80) {
+                corpus.append("。\n");
+                lineLength = 0;
+            }
+
+            for (int i = start; i < corpus.length(); i++) {
+                bytes += getUtf8Length(corpus.charAt(i));
+            }
+        }
+
+        return corpus.toString();
+    }
+
+    // Styles or nests the furigana of every ruby span while converting,
+    // so that decorated densities cost no pass over the converted text
+    private static FuriganaOptions createFuriganaOptions(final Density aDensity) {
+        final FuriganaOptions furiganaOptions = new FuriganaOptions(FURIGANA_RELATIVE_SIZE);
+
+        if (!aDensity.nested && !aDensity.styled) {
+            return furiganaOptions;
+        }
+
+        furiganaOptions.setFuriganaDecorator(new FuriganaOptions.FuriganaDecorator() {
+            @Override
+            public void decorate(final SpannableString aFurigana) {
+                if (aDensity.styled) {
+                    aFurigana.setSpan(new ForegroundColorSpan(Color.RED), 0, aFurigana.length(),
+                            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+
+                if (aDensity.nested) {
+                    final StringBuilder emphasis = new StringBuilder();
+
+                    for (int i = 0; i < aFurigana.length(); i++) {
+                        emphasis.append('・');
+                    }
+
+                    aFurigana.setSpan(new SuperRubySpan(emphasis), 0, aFurigana.length(),
+                            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            }
+        });
+
+        return furiganaOptions;
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+
+        for (MemoryPoolMXBean memoryPoolMXBean : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPoolMXBean.getType() == MemoryType.HEAP) {
+                memoryPoolMXBean.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peakHeap = 0;
+
+        for (MemoryPoolMXBean memoryPoolMXBean : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPoolMXBean.getType() == MemoryType.HEAP) {
+                peakHeap += memoryPoolMXBean.getPeakUsage().getUsed();
+            }
+        }
+
+        return peakHeap;
+    }
+
+    private static double getThroughput(final int aChars, final long aNanos) {
+        return aNanos == 0 ? 0 : aChars * 1e9 / aNanos;
+    }
+
+    private static void run(final Density aDensity, final long aMaxBytes) throws IOException {
+        final TextPaint textPaint = new TextPaint();
+        textPaint.setTextSize(TEXT_SIZE);
+
+        System.out.println(String.format(Locale.US, "%s: annotation ratio %.1f%s%s", aDensity.name,
+                aDensity.annotationRatio, aDensity.nested ? ", nested" : "", aDensity.styled ? ", styled" : ""));
+        System.out.println(String.format(Locale.US, "%10s %9s %9s %10s %10s %10s %12s %12s %12s %9s %8s",
+                "bytes", "chars", "spans", "convert ms", "layout ms", "draw ms",
+                "convert c/s", "layout c/s", "draw c/s", "peak MB", "scaling"));
+
+        long previousChars = 0;
+        long previousNanos = 0;
+
+        for (long bytes = MIN_BYTES; bytes <= aMaxBytes; bytes *= 10) {
+            final String corpus = generateCorpus(bytes, aDensity, new Random(bytes));
+
+            RubyMeasureCache.getInstance().clear();
+            resetPeakHeap();
+
+            final long convertStart = System.nanoTime();
+            final SpannableStringBuilder text = new SpannableStringBuilder();
+
+            JapaneseText.convertWithFurigana(text, new AozoraRubyParser(new StringReader(corpus)),
+                    createFuriganaOptions(aDensity));
+
+            final long layoutStart = System.nanoTime();
+            final StaticLayout staticLayout = RubyBitmapRenderer.createLayout(text, textPaint, LAYOUT_WIDTH);
+
+            final long drawStart = System.nanoTime();
+            final FullCanvas canvas = new FullCanvas(staticLayout.getHeight());
+
+            staticLayout.draw(canvas);
+
+            final long drawEnd = System.nanoTime();
+
+            final int chars = text.length();
+            final long totalNanos = drawEnd - convertStart;
+            final String scaling = previousChars == 0 ? "-" : String.format(Locale.US, "%.2f",
+                    Math.log((double) totalNanos / previousNanos) / Math.log((double) chars / previousChars));
+
+            System.out.println(String.format(Locale.US, "%10d %9d %9d %10.1f %10.1f %10.1f %12.0f %12.0f %12.0f %9.1f %8s",
+                    bytes, chars, text.getSpans(0, chars, Object.class).length,
+                    (layoutStart - convertStart) / 1e6, (drawStart - layoutStart) / 1e6, (drawEnd - drawStart) / 1e6,
+                    getThroughput(chars, layoutStart - convertStart),
+                    getThroughput(chars, drawStart - layoutStart),
+                    getThroughput(chars, drawEnd - drawStart),
+                    getPeakHeap() / 1e6, scaling));
+
+            previousChars = chars;
+            previousNanos = totalNanos;
+        }
+    }
+
+    @Test
+    public void scaling() throws IOException {
+        assumeTrue(Boolean.getBoolean("superrubyspan.benchmark"));
+
+        final long maxBytes = Long.getLong("superrubyspan.benchmark.maxBytes", 10000000);
+
+        for (Density density : DENSITIES) {
+            run(density, maxBytes);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan;
+
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.drawable.ColorDrawable;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.ImageSpan;
+import android.text.style.RelativeSizeSpan;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+// Budgets on canvas operations and allocations of one ruby span.
+// Exceeding them is considered a performance regression: raise them
+// only together with the change that justifies it.
+
+@RunWith(RobolectricTestRunner.class)
+public class SuperRubySpanBudgetTest {
+    // Measured under Robolectric at 40K, 1.2K and 2.8K bytes at most
+    // over the cases below
+    private static final long COLD_GET_SIZE_BYTES = 48 * 1024;
+    private static final long WARM_GET_SIZE_BYTES = 1536;
+    private static final long WARM_DRAW_BYTES = 3 * 1024;
+
+    private static final int WARM_UP_ITERATIONS = 20;
+    private static final int ITERATIONS = 50;
+
+    private static final int TOP = 0;
+    private static final int Y = 80;
+    private static final int BOTTOM = 100;
+
+    private TextPaint mPaint;
+    private RecordingCanvas mCanvas;
+
+    @Before
+    public void setUp() {
+        mPaint = new TextPaint();
+        mPaint.setTextSize(40);
+
+        mCanvas = new RecordingCanvas();
+
+        RubyMeasureCache.getInstance().clear();
+    }
+
+    private static SpannableString rubify(final CharSequence aText, final CharSequence aFurigana) {
+        final SpannableString spannableString = new SpannableString(aText);
+
+        spannableString.setSpan(new SuperRubySpan(aFurigana, SuperReplacementSpan.Alignment.JIS,
+                        SuperReplacementSpan.Alignment.JIS),
+                0, aText.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        return spannableString;
+    }
+
+    private static SpannableString createPlain() {
+        return rubify("漢字", "かんじ");
+    }
+
+    private static SpannableString createNested() {
+        return rubify("振り仮名", rubify("ふりがな", "furigana"));
+    }
+
+    private static SpannableString createStyled() {
+        final SpannableString furigana = new SpannableString("かんじ");
+
+        furigana.setSpan(new ForegroundColorSpan(Color.RED), 0, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        furigana.setSpan(new BackgroundColorSpan(Color.YELLOW), 0, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        furigana.setSpan(new RelativeSizeSpan(0.8f), 1, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        return rubify("漢字", furigana);
+    }
+
+    private static SpannableString createImage() {
+        final SpannableString text = new SpannableString("漢\uFFFC字");
+        final ColorDrawable drawable = new ColorDrawable(Color.BLUE);
+
+        drawable.setBounds(0, 0, 20, 20);
+        text.setSpan(new ImageSpan(drawable), 1, 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        return rubify(text, "かんじ");
+    }
+
+    private static SpannableString createLong() {
+        final StringBuilder text = new StringBuilder();
+        final StringBuilder furigana = new StringBuilder();
+
+        for (int i = 0; i < 32; i++) {
+            text.append("漢字");
+            furigana.append("かんじ");
+        }
+
+        return rubify(text, furigana);
+    }
+
+    private static SpannableString createLongNested() {
+        final StringBuilder text = new StringBuilder();
+        final StringBuilder furigana = new StringBuilder();
+        final StringBuilder nestedFurigana = new StringBuilder();
+
+        for (int i = 0; i < 32; i++) {
+            text.append("振り仮名");
+            furigana.append("ふりがな");
+            nestedFurigana.append("furigana");
+        }
+
+        return rubify(text, rubify(furigana, nestedFurigana));
+    }
+
+    private SuperRubySpan getSpan(final Spanned aText) {
+        return aText.getSpans(0, aText.length(), SuperRubySpan.class)[0];
+    }
+
+    private int measure(final Spanned aText) {
+        return getSpan(aText).getSize(mPaint, aText, 0, aText.length(), new Paint.FontMetricsInt());
+    }
+
+    private void draw(final Spanned aText) {
+        getSpan(aText).draw(mCanvas, aText, 0, aText.length(), 0, TOP, Y, BOTTOM, mPaint);
+    }
+
+    private void warmUp(final Spanned aText) {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            measure(aText);
+            draw(aText);
+        }
+
+        mCanvas.reset();
+    }
+
+    private void checkDrawCalls(final Spanned aText, final int aMaxDrawText,
+                                final int aMaxDrawRect, final int aMaxPaintMutations) {
+        warmUp(aText);
+        draw(aText);
+
+        assertTrue("drawText: " + mCanvas.getDrawTextCount() + " > " + aMaxDrawText,
+                mCanvas.getDrawTextCount() <= aMaxDrawText);
+        assertTrue("drawRect: " + mCanvas.getDrawRectCount() + " > " + aMaxDrawRect,
+                mCanvas.getDrawRectCount() <= aMaxDrawRect);
+        assertTrue("paint mutations: " + mCanvas.getPaintMutationCount() + " > " + aMaxPaintMutations,
+                mCanvas.getPaintMutationCount() <= aMaxPaintMutations);
+    }
+
+    private void checkAllocations(final Spanned aText) {
+        assumeTrue(AllocationMeter.isSupported());
+
+        final Runnable measureRunnable = new Runnable() {
+            @Override
+            public void run() {
+                measure(aText);
+            }
+        };
+
+        final Runnable drawRunnable = new Runnable() {
+            @Override
+            public void run() {
+                draw(aText);
+            }
+        };
+
+        final long coldGetSize = AllocationMeter.measure(measureRunnable, 1);
+
+        assertTrue("cold getSize(): " + coldGetSize + " bytes", coldGetSize <= COLD_GET_SIZE_BYTES);
+
+        warmUp(aText);
+
+        final long warmGetSize = AllocationMeter.measure(measureRunnable, ITERATIONS);
+
+        assertTrue("warm getSize(): " + warmGetSize + " bytes", warmGetSize <= WARM_GET_SIZE_BYTES);
+
+        final long warmDraw = AllocationMeter.measure(drawRunnable, ITERATIONS);
+
+        assertTrue("warm draw(): " + warmDraw + " bytes", warmDraw <= WARM_DRAW_BYTES);
+    }
+
+    // Each glyph is drawn once, and each gap between two glyphs of a
+    // spaced row is filled by two stretched spaces, the scale of which
+    // is restored after drawing them
+
+    @Test
+    public void plainDrawCalls() {
+        // 5 glyphs, 1 gap in the text
+        checkDrawCalls(createPlain(), 7, 0, 0);
+    }
+
+    @Test
+    public void nestedDrawCalls() {
+        // 16 glyphs, 3 gaps in the text and 3 in its furigana
+        checkDrawCalls(createNested(), 28, 0, 0);
+    }
+
+    @Test
+    public void styledFuriganaDrawCalls() {
+        // Contiguous background colors are merged into a single
+        // rectangle, the furigana paint changing once for its colors
+        checkDrawCalls(createStyled(), 7, 1, 1);
+    }
+
+    @Test
+    public void imageDrawCalls() {
+        // 2 gaps in the furigana, spread over the image. ColorDrawable
+        // draws itself as one rectangle
+        checkDrawCalls(createImage(), 8, 1, 0);
+    }
+
+    @Test
+    public void clippedDrawCalls() {
+        final Spanned text = createLong();
+        final int size = measure(text);
+
+        warmUp(text);
+        draw(text);
+
+        assertTrue(mCanvas.getDrawTextCount() > 0);
+
+        // Elements fully outside of the clip are not drawn
+        mCanvas.reset();
+        mCanvas.setClip(-2000, TOP, -1000, BOTTOM);
+        draw(text);
+
+        assertEquals(0, mCanvas.getDrawTextCount());
+
+        mCanvas.reset();
+        mCanvas.setClip(size + 1000, TOP, size + 2000, BOTTOM);
+        draw(text);
+
+        assertEquals(0, mCanvas.getDrawTextCount());
+    }
+
+    @Test
+    public void partiallyClippedDrawCalls() {
+        final Spanned text = createLongNested();
+        final int size = measure(text);
+
+        warmUp(text);
+        draw(text);
+
+        final int drawTextCount = mCanvas.getDrawTextCount();
+
+        // Only the first few characters are visible
+        mCanvas.reset();
+        mCanvas.setClip(-1000, TOP, size / 32, BOTTOM);
+        draw(text);
+
+        assertTrue("clipped drawText: " + mCanvas.getDrawTextCount(),
+                mCanvas.getDrawTextCount() > 0 && mCanvas.getDrawTextCount() < drawTextCount);
+    }
+
+    @Test
+    public void plainAllocations() {
+        checkAllocations(createPlain());
+    }
+
+    @Test
+    public void nestedAllocations() {
+        checkAllocations(createNested());
+    }
+
+    @Test
+    public void styledFuriganaAllocations() {
+        checkAllocations(createStyled());
+    }
+
+    @Test
+    public void imageAllocations() {
+        checkAllocations(createImage());
+    }
+}
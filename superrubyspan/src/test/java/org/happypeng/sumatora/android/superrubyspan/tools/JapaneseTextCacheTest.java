@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import org.happypeng.sumatora.android.superrubyspan.SuperReplacementSpan;
+import org.happypeng.sumatora.android.superrubyspan.SuperRubySpan;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class JapaneseTextCacheTest {
+    private static final String EXAMPLE = "{漢字;かんじ}を{読;よ}む";
+
+    @Test
+    public void returnsSharedResults() {
+        final JapaneseTextCache cache = new JapaneseTextCache();
+
+        final Spanned first = cache.spannifyWithFurigana(EXAMPLE, 0.5f);
+        final Spanned second = cache.spannifyWithFurigana(EXAMPLE, 0.5f);
+
+        assertSame(first, second);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getEntryCount());
+        assertFalse(first instanceof SpannableStringBuilder);
+
+        final SpannableStringBuilder expected = new SpannableStringBuilder();
+
+        JapaneseText.spannifyWithFurigana(expected, EXAMPLE, 0.5f);
+
+        assertEquals(expected.toString(), first.toString());
+        assertEquals(expected.getSpans(0, expected.length(), SuperReplacementSpan.class).length,
+                first.getSpans(0, first.length(), SuperReplacementSpan.class).length);
+    }
+
+    @Test
+    public void keysIncludeOptions() {
+        final JapaneseTextCache cache = new JapaneseTextCache();
+
+        final Spanned spannified = cache.spannifyWithFurigana(EXAMPLE, 0.5f);
+
+        assertNotSame(spannified, cache.spannifyWithFurigana(EXAMPLE, 0.6f));
+        assertNotSame(spannified, cache.rubifyWithFurigana(EXAMPLE, 0.5f));
+
+        final Spanned centered = cache.spannifyWithFurigana(EXAMPLE, 0.5f,
+                SuperReplacementSpan.Alignment.CENTER, SuperReplacementSpan.Alignment.CENTER);
+        final SuperRubySpan span = centered.getSpans(0, centered.length(), SuperRubySpan.class)[0];
+
+        assertNotSame(spannified, centered);
+        assertEquals(SuperReplacementSpan.Alignment.CENTER, span.getAlignment());
+        assertEquals(SuperReplacementSpan.Alignment.CENTER, span.getFuriganaAlignment());
+
+        assertEquals(4, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final JapaneseTextCache cache = new JapaneseTextCache(2, JapaneseTextCache.DEFAULT_MAX_BYTES);
+
+        final Spanned first = cache.spannifyWithFurigana("{一;いち}", 0.5f);
+
+        cache.spannifyWithFurigana("{二;に}", 0.5f);
+        cache.spannifyWithFurigana("{一;いち}", 0.5f);
+        cache.spannifyWithFurigana("{三;さん}", 0.5f);
+
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertSame(first, cache.spannifyWithFurigana("{一;いち}", 0.5f));
+
+        cache.setMaxBytes(0);
+
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSizeBytes());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import android.graphics.Color;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+
+import org.happypeng.sumatora.android.superrubyspan.SuperReplacementSpan;
+import org.happypeng.sumatora.android.superrubyspan.SuperRubySpan;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class JapaneseTextTest {
+    private static SpannableStringBuilder spannify(final String aString) {
+        final SpannableStringBuilder text = new SpannableStringBuilder();
+
+        JapaneseText.spannifyWithFurigana(text, aString, 0.5f);
+
+        return text;
+    }
+
+    @Test
+    public void keepsLastCharacter() {
+        final SpannableStringBuilder text = spannify("{漢字;かんじ}です");
+
+        assertEquals("漢字です", text.toString());
+        assertEquals(1, text.getSpans(3, 4, SuperReplacementSpan.class).length);
+
+        assertEquals("あ", spannify("あ").toString());
+        assertEquals("漢字", spannify("{漢字;かんじ}").toString());
+    }
+
+    // An opening brace is not part of an annotation: it stays text,
+    // the annotation starting at the last brace before it
+    @Test
+    public void openingBraceStaysText() {
+        final SpannableStringBuilder text = spannify("{{今日;きょう}は{x{漢字;かんじ}");
+
+        assertEquals("{今日は{x漢字", text.toString());
+
+        final SuperRubySpan[] rubySpans = text.getSpans(0, text.length(), SuperRubySpan.class);
+
+        assertEquals(2, rubySpans.length);
+        assertEquals(1, text.getSpanStart(rubySpans[0]));
+        assertEquals(3, text.getSpanEnd(rubySpans[0]));
+        assertEquals("きょう", rubySpans[0].getFurigana().toString());
+        assertEquals(6, text.getSpanStart(rubySpans[1]));
+        assertEquals(8, text.getSpanEnd(rubySpans[1]));
+    }
+
+    @Test
+    public void decoratesFurigana() {
+        final FuriganaOptions furiganaOptions = new FuriganaOptions(0.5f);
+
+        furiganaOptions.setFuriganaDecorator(new FuriganaOptions.FuriganaDecorator() {
+            @Override
+            public void decorate(final SpannableString aFurigana) {
+                aFurigana.setSpan(new ForegroundColorSpan(Color.RED), 0, aFurigana.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        });
+
+        final SpannableStringBuilder text = new SpannableStringBuilder();
+        JapaneseText.convertWithFurigana(text, "{漢字;かんじ}です", furiganaOptions);
+
+        final Spanned furigana = (Spanned) text.getSpans(0, text.length(), SuperRubySpan.class)[0].getFurigana();
+
+        assertEquals(1, furigana.getSpans(0, furigana.length(), ForegroundColorSpan.class).length);
+    }
+}
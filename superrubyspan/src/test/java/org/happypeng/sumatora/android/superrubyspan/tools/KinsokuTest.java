@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KinsokuTest {
+    @Test
+    public void breaksBetweenIdeographs() {
+        assertTrue(Kinsoku.canBreakBetween('漢', '字'));
+        assertTrue(Kinsoku.canBreakBetween('の', '読'));
+    }
+
+    @Test
+    public void doesNotStartLinesWithClosingPunctuation() {
+        assertFalse(Kinsoku.canBreakBetween('字', '。'));
+        assertFalse(Kinsoku.canBreakBetween('字', '」'));
+        assertFalse(Kinsoku.canBreakBetween('き', 'ょ'));
+        assertFalse(Kinsoku.canBreakBetween('ル', 'ー'));
+    }
+
+    @Test
+    public void doesNotEndLinesWithOpeningBrackets() {
+        assertFalse(Kinsoku.canBreakBetween('「', 'あ'));
+        assertFalse(Kinsoku.canBreakBetween('（', '漢'));
+        assertTrue(Kinsoku.canBreakBetween('」', '「'));
+    }
+
+    @Test
+    public void keepsLatinWordsTogether() {
+        assertFalse(Kinsoku.canBreakBetween('a', 'b'));
+        assertFalse(Kinsoku.canBreakBetween('1', '0'));
+        assertTrue(Kinsoku.canBreakBetween(' ', 'b'));
+        assertTrue(Kinsoku.canBreakBetween('a', '漢'));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import android.text.SpannableStringBuilder;
+
+import org.happypeng.sumatora.android.superrubyspan.SuperRubySpan;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class KnownKanjiTest {
+    @Test
+    public void loadsKanjiLists() throws IOException {
+        final KnownKanji knownKanji = KnownKanji.load(new StringReader("一\n二\n三, 日 (ひ)\n龥"));
+
+        assertEquals(5, knownKanji.size());
+        assertTrue(knownKanji.contains('一'));
+        assertTrue(knownKanji.contains('龥'));
+        assertFalse(knownKanji.contains('ひ'));
+        assertFalse(knownKanji.contains('四'));
+
+        knownKanji.remove('一');
+        assertFalse(knownKanji.contains('一'));
+    }
+
+    @Test
+    public void knownText() {
+        final KnownKanji knownKanji = new KnownKanji();
+        knownKanji.addAll("日人");
+
+        assertTrue(knownKanji.isKnown("日々"));
+        assertTrue(knownKanji.isKnown("人たち"));
+        assertFalse(knownKanji.isKnown("日本"));
+        assertFalse(knownKanji.isKnown("ひと"));
+        assertFalse(knownKanji.isKnown("𠮟"));
+    }
+
+    @Test
+    public void knownAnnotationsArePlainText() {
+        final KnownKanji knownKanji = new KnownKanji();
+        knownKanji.addAll("今日");
+
+        final SpannableStringBuilder text = new SpannableStringBuilder();
+
+        final FuriganaOptions furiganaOptions = new FuriganaOptions(0.5f);
+        furiganaOptions.setKnownKanji(knownKanji);
+
+        JapaneseText.convertWithFurigana(text, "{今日;きょう}は{漢字;かんじ}の日", furiganaOptions);
+
+        final SuperRubySpan[] rubySpans = text.getSpans(0, text.length(), SuperRubySpan.class);
+
+        assertEquals("今日は漢字の日", text.toString());
+        assertEquals(1, rubySpans.length);
+        assertEquals("かんじ", rubySpans[0].getFurigana().toString());
+    }
+
+    @Test
+    public void knownParsedAnnotationsArePlainText() throws IOException {
+        final KnownKanji knownKanji = new KnownKanji();
+        knownKanji.addAll("今日");
+
+        final SpannableStringBuilder text = new SpannableStringBuilder();
+
+        final FuriganaOptions furiganaOptions = new FuriganaOptions(0.5f);
+        furiganaOptions.setKnownKanji(knownKanji);
+        furiganaOptions.setAlignment(SuperRubySpan.Alignment.CENTER);
+        furiganaOptions.setFuriganaAlignment(SuperRubySpan.Alignment.JUSTIFIED);
+
+        JapaneseText.convertWithFurigana(text,
+                new AozoraRubyParser(new StringReader("｜今日《きょう》は｜漢字《かんじ》の日")), furiganaOptions);
+
+        final SuperRubySpan[] rubySpans = text.getSpans(0, text.length(), SuperRubySpan.class);
+
+        assertEquals("今日は漢字の日", text.toString());
+        assertEquals(1, rubySpans.length);
+        assertEquals("かんじ", rubySpans[0].getFurigana().toString());
+        assertEquals(SuperRubySpan.Alignment.CENTER, rubySpans[0].getAlignment());
+        assertEquals(SuperRubySpan.Alignment.JUSTIFIED, rubySpans[0].getFuriganaAlignment());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import org.happypeng.sumatora.android.superrubyspan.SuperReplacementSpan;
+import org.happypeng.sumatora.android.superrubyspan.SuperRubySpan;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubyMarkupWatcherTest {
+    private SpannableStringBuilder mText;
+
+    @Before
+    public void setUp() {
+        mText = new SpannableStringBuilder("{今日;きょう}は{漢字;かんじ}の勉強");
+
+        final RubyMarkupWatcher rubyMarkupWatcher = new RubyMarkupWatcher(0.5f);
+
+        rubyMarkupWatcher.convert(mText);
+        mText.setSpan(rubyMarkupWatcher, 0, mText.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+    }
+
+    private SuperRubySpan getRubySpan(final String aBaseText) {
+        final int start = mText.toString().indexOf(aBaseText);
+
+        for (SuperRubySpan rubySpan : mText.getSpans(0, mText.length(), SuperRubySpan.class)) {
+            if (mText.getSpanStart(rubySpan) == start && mText.getSpanEnd(rubySpan) == start + aBaseText.length()) {
+                return rubySpan;
+            }
+        }
+
+        return null;
+    }
+
+    @Test
+    public void convertsMarkup() {
+        assertEquals("きょう", getRubySpan("今日").getFurigana().toString());
+        assertEquals("かんじ", getRubySpan("漢字").getFurigana().toString());
+        assertEquals(2, mText.getSpans(0, mText.length(), RubyMarkupWatcher.MarkupSpan.class).length / 2);
+    }
+
+    @Test
+    public void editReplacesOnlyLocalSpans() {
+        final SuperRubySpan todaySpan = getRubySpan("今日");
+
+        final int readingEnd = mText.toString().indexOf("かんじ") + 3;
+        mText.insert(readingEnd, "ん");
+
+        assertSame(todaySpan, getRubySpan("今日"));
+        assertEquals("かんじん", getRubySpan("漢字").getFurigana().toString());
+    }
+
+    @Test
+    public void newMarkupIsConverted() {
+        final SuperRubySpan todaySpan = getRubySpan("今日");
+
+        mText.append("{練習;れんしゅう}");
+
+        assertSame(todaySpan, getRubySpan("今日"));
+        assertEquals("れんしゅう", getRubySpan("練習").getFurigana().toString());
+    }
+
+    @Test
+    public void brokenMarkupIsPlainText() {
+        mText.delete(mText.toString().indexOf("かんじ") + 3, mText.toString().indexOf("かんじ") + 4);
+
+        assertNull(getRubySpan("漢字"));
+        assertNotNull(getRubySpan("今日"));
+    }
+
+    private SuperReplacementSpan getSpanAt(final int aPosition) {
+        for (SuperReplacementSpan span : mText.getSpans(aPosition, aPosition + 1, SuperReplacementSpan.class)) {
+            if (mText.getSpanStart(span) == aPosition) {
+                return span;
+            }
+        }
+
+        return null;
+    }
+
+    @Test
+    public void plainTextEditKeepsOtherSpans() {
+        final int studyStart = mText.toString().indexOf("勉強");
+        final SuperReplacementSpan studySpan = getSpanAt(studyStart);
+        final SuperReplacementSpan strongSpan = getSpanAt(studyStart + 1);
+        final SuperRubySpan kanjiSpan = getRubySpan("漢字");
+
+        mText.insert(studyStart + 1, "の");
+
+        assertSame(studySpan, getSpanAt(studyStart));
+        assertSame(strongSpan, getSpanAt(studyStart + 2));
+        assertSame(kanjiSpan, getRubySpan("漢字"));
+        assertNotNull(getSpanAt(studyStart + 1));
+
+        mText.delete(studyStart + 1, studyStart + 2);
+
+        assertSame(studySpan, getSpanAt(studyStart));
+        assertSame(strongSpan, getSpanAt(studyStart + 1));
+        // Two ruby spans, and one span for each of は, の, 勉 and 強
+        assertEquals(6, mText.getSpans(0, mText.length(), SuperReplacementSpan.class).length);
+    }
+
+    @Test
+    public void unclosedMarkupConvertsAsInFullConversion() {
+        final SpannableStringBuilder edited = new SpannableStringBuilder("{a;b");
+        final RubyMarkupWatcher rubyMarkupWatcher = new RubyMarkupWatcher(0.5f);
+
+        rubyMarkupWatcher.convert(edited);
+        edited.setSpan(rubyMarkupWatcher, 0, edited.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        edited.append("{c;d}");
+
+        final SpannableStringBuilder converted = new SpannableStringBuilder("{a;b{c;d}");
+
+        new RubyMarkupWatcher(0.5f).convert(converted);
+
+        for (SpannableStringBuilder text : new SpannableStringBuilder[] { edited, converted }) {
+            final SuperRubySpan[] rubySpans = text.getSpans(0, text.length(), SuperRubySpan.class);
+
+            assertEquals(1, rubySpans.length);
+            assertEquals("d", rubySpans[0].getFurigana().toString());
+            assertEquals(5, text.getSpanStart(rubySpans[0]));
+        }
+    }
+}
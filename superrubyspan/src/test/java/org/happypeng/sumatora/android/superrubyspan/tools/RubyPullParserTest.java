@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class RubyPullParserTest {
+    // Text events are written (text), annotations [base/reading]
+    private static String dump(final RubyPullParser aRubyPullParser) throws IOException {
+        final StringBuilder result = new StringBuilder();
+        int eventType;
+
+        while ((eventType = aRubyPullParser.next()) != RubyPullParser.EventType.END_DOCUMENT) {
+            if (eventType == RubyPullParser.EventType.RUBY) {
+                result.append('[').append(aRubyPullParser.getText()).append('/')
+                        .append(aRubyPullParser.getReading()).append(']');
+            } else {
+                result.append('(').append(aRubyPullParser.getText()).append(')');
+            }
+        }
+
+        return result.toString();
+    }
+
+    private static String dumpAozora(final String aString) throws IOException {
+        return dump(new AozoraRubyParser(new StringReader(aString)));
+    }
+
+    private static String dumpHtml(final String aString) throws IOException {
+        return dump(new HtmlRubyParser(new StringReader(aString)));
+    }
+
+    private static String repeat(final char aChar, final int aCount) {
+        final StringBuilder result = new StringBuilder();
+
+        for (int i = 0; i < aCount; i++) {
+            result.append(aChar);
+        }
+
+        return result.toString();
+    }
+
+    @Test
+    public void aozoraImplicitBase() throws IOException {
+        assertEquals("(今日は良い)[天気/てんき](だ。)", dumpAozora("今日は良い天気《てんき》だ。"));
+        assertEquals("[吾輩/わがはい](は猫である)", dumpAozora("吾輩《わがはい》は猫である"));
+    }
+
+    @Test
+    public void aozoraExplicitBase() throws IOException {
+        assertEquals("(これは)[東京タワー/とうきょうタワー](だ)",
+                dumpAozora("これは｜東京タワー《とうきょうタワー》だ"));
+    }
+
+    @Test
+    public void aozoraSkipsNotes() throws IOException {
+        assertEquals("(に行く。)", dumpAozora("に行く［＃「行く」に傍点］。"));
+    }
+
+    @Test
+    public void aozoraKeepsUnmatchedReadings() throws IOException {
+        assertEquals("(あ《い》)", dumpAozora("あ《い》"));
+        assertEquals("(猫《ねこ)", dumpAozora("猫《ねこ"));
+        assertEquals("(猫\n《ねこ》)", dumpAozora("猫\n《ねこ》"));
+    }
+
+    @Test
+    public void aozoraStreamsLongInput() throws IOException {
+        final StringBuilder input = new StringBuilder();
+
+        for (int i = 0; i < 10000; i++) {
+            input.append("あ漢字《かんじ》い");
+        }
+
+        final RubyPullParser rubyPullParser = new AozoraRubyParser(new StringReader(input.toString()));
+        int rubyCount = 0;
+        int textLength = 0;
+        int eventType;
+
+        while ((eventType = rubyPullParser.next()) != RubyPullParser.EventType.END_DOCUMENT) {
+            if (eventType == RubyPullParser.EventType.RUBY) {
+                assertEquals("漢字", rubyPullParser.getText().toString());
+                assertEquals("かんじ", String.valueOf(rubyPullParser.getReading()));
+
+                rubyCount++;
+            }
+
+            // Pending text is flushed in bounded chunks
+            assertTrue(rubyPullParser.getText().length() <= AbstractRubyPullParser.CHUNK_LENGTH);
+
+            textLength += rubyPullParser.getText().length();
+        }
+
+        assertEquals(10000, rubyCount);
+        assertEquals(40000, textLength);
+    }
+
+    @Test
+    public void htmlRuby() throws IOException {
+        assertEquals("(吾輩は)[猫/ねこ](である)",
+                dumpHtml("吾輩は<ruby>猫<rp>(</rp><rt>ねこ</rt><rp>)</rp></ruby>である"));
+        assertEquals("[漢/かん][字/じ]",
+                dumpHtml("<ruby><rb>漢</rb><rt>かん</rt><rb>字</rb><rt>じ</rt></ruby>"));
+        assertEquals("[漢/かん][字/じ]",
+                dumpHtml("<ruby>漢<rt>かん</rt>字<rt>じ</rt></ruby>"));
+    }
+
+    @Test
+    public void htmlMarkup() throws IOException {
+        assertEquals("(一行\n二\n行あ & <\n)",
+                dumpHtml("<?xml version=\"1.0\"?><html><head><title>題</title></head>" +
+                        "<body><p>一行</p>\n  <p>二<br/>行&#x3042; &amp; &lt;<!-- a > b --></p></body></html>"));
+    }
+
+    @Test
+    public void htmlRubyWithoutReading() throws IOException {
+        assertEquals("(漢字)", dumpHtml("<ruby>漢字</ruby>"));
+    }
+
+    @Test
+    public void htmlRubyCollapsesWhitespace() throws IOException {
+        assertEquals("[New York/ニュー ヨーク]",
+                dumpHtml("<ruby> New\n  York <rt> ニュー\tヨーク </rt></ruby>"));
+    }
+
+    @Test
+    public void htmlKeepsLongAnnotationsAsText() throws IOException {
+        final String longText = repeat('あ', AbstractRubyPullParser.MAX_ANNOTATION_LENGTH + 1);
+
+        assertEquals("(" + longText + "い)[猫/ねこ]",
+                dumpHtml("<ruby>" + longText + "<rt>い</rt></ruby><ruby>猫<rt>ねこ</rt></ruby>"));
+        assertEquals("(猫" + longText + ")[犬/いぬ]",
+                dumpHtml("<ruby>猫<rt>" + longText + "</rt></ruby><ruby>犬<rt>いぬ</rt></ruby>"));
+    }
+
+    @Test
+    public void htmlReplacesInvalidCodePoints() throws IOException {
+        assertEquals("(a\uFFFDb\uFFFDc\uFFFDd)", dumpHtml("a&#1114112;b&#x110000;c&#xD800;d"));
+        assertEquals("(\uD842\uDFB7)", dumpHtml("&#x20BB7;"));
+    }
+
+    @Test
+    public void htmlKeepsUnknownReferences() throws IOException {
+        assertEquals("(A & B)", dumpHtml("A & B"));
+        assertEquals("(&foo;)", dumpHtml("&foo;"));
+        assertEquals("(AT&T)", dumpHtml("AT&T"));
+        assertEquals("(&#;)", dumpHtml("&#;"));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 Nicolas Centa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.happypeng.sumatora.android.superrubyspan.tools;
+
+import android.text.SpannableStringBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RubySearchIndexTest {
+    private RubySearchIndex mRubySearchIndex;
+
+    @Before
+    public void setUp() {
+        final SpannableStringBuilder text = new SpannableStringBuilder();
+
+        final FuriganaOptions furiganaOptions = new FuriganaOptions(0.5f);
+        furiganaOptions.setSpannifyText(false);
+
+        JapaneseText.convertWithFurigana(text, "{今日;きょう}は{漢字;かんじ}の{勉強;べんきょう}をします。カンジ",
+                furiganaOptions);
+
+        mRubySearchIndex = new RubySearchIndex(text);
+    }
+
+    @Test
+    public void readingMatchesBaseText() {
+        assertArrayEquals(new int[] { 0, 2, 6, 8 }, mRubySearchIndex.search("きょう"));
+    }
+
+    @Test
+    public void readingAndBaseTextMix() {
+        assertArrayEquals(new int[] { 0, 3 }, mRubySearchIndex.search("きょうは"));
+        assertArrayEquals(new int[] { 5, 8 }, mRubySearchIndex.search("のべん"));
+        assertArrayEquals(new int[] { 5, 8 }, mRubySearchIndex.search("の勉強"));
+    }
+
+    @Test
+    public void baseText() {
+        assertArrayEquals(new int[] { 0, 2 }, mRubySearchIndex.search("今日"));
+        assertArrayEquals(new int[] { 3, 4 }, mRubySearchIndex.search("漢"));
+    }
+
+    @Test
+    public void katakanaAreFolded() {
+        assertArrayEquals(new int[] { 3, 5, 13, 16 }, mRubySearchIndex.search("かんじ"));
+        assertArrayEquals(new int[] { 3, 5, 13, 16 }, mRubySearchIndex.search("カンジ"));
+    }
+
+    @Test
+    public void noMatch() {
+        assertEquals(0, mRubySearchIndex.search("えいご").length);
+        assertEquals(0, mRubySearchIndex.search("").length);
+    }
+}